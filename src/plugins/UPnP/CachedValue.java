@@ -0,0 +1,122 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+
+
+package plugins.UPnP;
+
+/**
+ * A value we get from the IGD, kept for a while so that we don't have to ask again.
+ *
+ * Concurrent callers of {@link #get()} share a single in-flight request, and all of them get
+ * its result, null included. Null results aren't cached: the next caller will try again.
+ */
+abstract class CachedValue<T> {
+    private long ttl;
+    private T value;
+    private long expiry;
+    private boolean isFetching;
+
+    /** Bumped every time a request starts, so that the callers waiting for it can tell it is over */
+    private long flight;
+
+    /** What the last request returned */
+    private T flightResult;
+
+    /** Bumped on every invalidation, so that a stale in-flight result doesn't get cached */
+    private long generation;
+
+    /**
+     * @param ttl how long a value is considered fresh, in milliseconds
+     */
+    CachedValue(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Asks the IGD for the current value. Blocking.
+     *
+     * @return the value, or null if it can't be retrieved right now
+     */
+    protected abstract T fetch();
+
+    /**
+     * @return the cached value if it is still fresh, otherwise a freshly fetched one. Blocking.
+     */
+    T get() {
+        long gen;
+
+        synchronized (this) {
+            if ((value != null) && (System.currentTimeMillis() < expiry)) {
+                return value;
+            }
+
+            if (isFetching) {
+                long awaited = flight;
+
+                while (isFetching && (flight == awaited)) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+
+                        // Probably shutting down: let the caller see it
+                        Thread.currentThread().interrupt();
+
+                        return value;
+                    }
+                }
+
+                // Failed or not, don't ask again: the IGD has just been asked
+                return flightResult;
+            }
+
+            isFetching = true;
+            flight++;
+            gen = generation;
+        }
+
+        T result = null;
+
+        try {
+            result = fetch();
+        } finally {
+            synchronized (this) {
+                isFetching = false;
+                flightResult = result;
+
+                if ((result != null) && (gen == generation)) {
+                    store(result);
+                }
+
+                notifyAll();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Replaces the cached value with one we have been told about, e.g. by a GENA event.
+     */
+    synchronized void set(T newValue) {
+        generation++;
+        store(newValue);
+    }
+
+    private void store(T newValue) {
+        value = newValue;
+        expiry = System.currentTimeMillis() + ttl;
+    }
+
+    /**
+     * Forgets the cached value; the next {@link #get()} will ask the IGD.
+     */
+    synchronized void invalidate() {
+        value = null;
+        generation++;
+    }
+
+    synchronized void setTTL(long ttl) {
+        this.ttl = ttl;
+    }
+}
@@ -0,0 +1,709 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+
+
+package plugins.UPnP;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import plugins.UPnP.org.cybergarage.upnp.Action;
+import plugins.UPnP.org.cybergarage.upnp.Argument;
+import plugins.UPnP.org.cybergarage.upnp.ArgumentList;
+import plugins.UPnP.org.cybergarage.upnp.Device;
+import plugins.UPnP.org.cybergarage.upnp.DeviceList;
+import plugins.UPnP.org.cybergarage.upnp.Service;
+import plugins.UPnP.org.cybergarage.upnp.ServiceList;
+import plugins.UPnP.org.cybergarage.upnp.control.ActionRequest;
+import plugins.UPnP.org.cybergarage.upnp.control.ActionResponse;
+import plugins.UPnP.org.cybergarage.upnp.ssdp.SSDPPacket;
+
+import freenet.pluginmanager.ForwardPort;
+import freenet.pluginmanager.ForwardPortStatus;
+
+import freenet.support.Logger;
+
+/**
+ * An Internet Gateway Device we can forward ports on, along with everything we know about it:
+ * what it last told us, the mappings we have on it and the engine managing them.
+ */
+final class Gateway {
+    /** some schemas */
+    static final String ROUTER_DEVICE = "urn:schemas-upnp-org:device:InternetGatewayDevice:1";
+    private static final String WAN_DEVICE = "urn:schemas-upnp-org:device:WANDevice:1";
+    private static final String WANCON_DEVICE = "urn:schemas-upnp-org:device:WANConnectionDevice:1";
+    static final String WAN_IP_CONNECTION = "urn:schemas-upnp-org:service:WANIPConnection:1";
+    static final String WAN_PPP_CONNECTION = "urn:schemas-upnp-org:service:WANPPPConnection:1";
+    static final String WAN_COMMON_INTERFACE_CONFIG =
+        "urn:schemas-upnp-org:service:WANCommonInterfaceConfig:1";
+
+    /** UPnP error code of routers which won't hear about anything else than permanent leases */
+    private static final int ONLY_PERMANENT_LEASES_SUPPORTED = 725;
+
+    /** UPnP error codes telling us we went past the end of the port mapping table */
+    private static final int SPECIFIED_ARRAY_INDEX_INVALID = 713;
+    private static final int NO_SUCH_ENTRY_IN_ARRAY = 714;
+
+    /** We don't read more than that many entries of the port mapping table */
+    static final int MAX_PORT_MAPPING_ENTRIES = 128;
+
+    private final UPnP upnp;
+    private final Device device;
+    private final Service service;
+    private final PortMapper portMapper;
+
+    /** Whether we got it from GatewayCache rather than from SSDP */
+    private final boolean isFromCache;
+
+    /** Set once the IGD has refused a leased mapping */
+    private volatile boolean onlyPermanentLeases = false;
+
+    /** BOOTID.UPNP.ORG the IGD last announced, if any. Protected by synchronized (this). */
+    private String bootId;
+
+    /** List of ports we have actually forwarded on that IGD. Protected by synchronized (this). */
+    private final Set<ForwardPort> portsForwarded = new HashSet<ForwardPort>();
+
+    /** The last status reported for each port. Protected by synchronized (this). */
+    private final Map<ForwardPort, ForwardPortStatus> portStatus =
+        new HashMap<ForwardPort, ForwardPortStatus>();
+
+    /** How many times we had to ask for each port. Protected by synchronized (this). */
+    private final Map<ForwardPort, Integer> portTries = new HashMap<ForwardPort, Integer>();
+
+    /** What last went wrong with that IGD, and when. Protected by synchronized (this). */
+    private String lastError;
+    private long lastErrorTime;
+
+    /** What the IGD last told us */
+    private final CachedValue<String> externalIP =
+        new CachedValue<String>(UPnP.DEFAULT_EXTERNAL_IP_TTL) {
+            protected String fetch() {
+                return getOutputArgument(invoke(service, "GetExternalIPAddress"),
+                                         "NewExternalIPAddress");
+            }
+        };
+    private final CachedValue<String> connectionStatus =
+        new CachedValue<String>(UPnP.DEFAULT_CONNECTION_STATUS_TTL) {
+            protected String fetch() {
+                return getOutputArgument(invoke(service, "GetStatusInfo"), "NewConnectionStatus");
+            }
+        };
+
+    /** { upstream, downstream } in bits per second */
+    private final CachedValue<int[]> linkBitRates =
+        new CachedValue<int[]>(UPnP.DEFAULT_LINK_BIT_RATES_TTL) {
+            protected int[] fetch() {
+                return fetchLinkBitRates();
+            }
+        };
+
+    Gateway(UPnP upnp, Device device, Service service, boolean isFromCache) {
+        this.upnp = upnp;
+        this.device = device;
+        this.service = service;
+        this.isFromCache = isFromCache;
+        this.portMapper = new PortMapper(upnp, this);
+
+        SSDPPacket packet = device.getSSDPPacket();
+
+        this.bootId = (packet == null) ? null : packet.getBootId();
+    }
+
+    /**
+     * Traverses the structure of the router device looking for the port mapping service.
+     *
+     * @return the service, or null if that IGD doesn't export any
+     */
+    static Service findService(Device router) {
+        DeviceList devices = router.getDeviceList();
+
+        for (int n = 0; n < devices.size(); n++) {
+            Device current = devices.getDevice(n);
+
+            if ( !current.getDeviceType().equals(WAN_DEVICE)) {
+                continue;
+            }
+
+            DeviceList l = current.getDeviceList();
+
+            for (int i = 0; i < current.getDeviceList().size(); i++) {
+                Device current2 = l.getDevice(i);
+
+                if ( !current2.getDeviceType().equals(WANCON_DEVICE)) {
+                    continue;
+                }
+
+                Service service = current2.getService(WAN_PPP_CONNECTION);
+
+                if (service == null) {
+                    Logger.normal(
+                        Gateway.class,
+                        router.getFriendlyName() +
+                        " doesn't seems to be using PPP; we won't be able to extract" +
+                        " bandwidth-related informations out of it.");
+                    service = current2.getService(WAN_IP_CONNECTION);
+
+                    if (service == null) {
+                        Logger.error(Gateway.class,
+                                     router.getFriendlyName() +
+                                     " doesn't export WAN_IP_CONNECTION either: we won't" +
+                                     " be able to use it!");
+                    }
+                }
+
+                return service;
+            }
+        }
+
+        return null;
+    }
+
+    Device getDevice() {
+        return device;
+    }
+
+    Service getService() {
+        return service;
+    }
+
+    PortMapper getPortMapper() {
+        return portMapper;
+    }
+
+    /**
+     * @return whether that IGD comes from the cache of the previous run and hasn't been heard
+     *     of on the LAN yet
+     */
+    boolean isFromCache() {
+        return isFromCache;
+    }
+
+    String getUDN() {
+        return device.getUDN();
+    }
+
+    String getFriendlyName() {
+        return device.getFriendlyName();
+    }
+
+    /**
+     * @return the address the IGD sees us with
+     */
+    String getInternalClient() {
+        return device.getInterfaceAddress();
+    }
+
+    public String toString() {
+        return getFriendlyName() + " (" + getUDN() + ")";
+    }
+
+    ////////////////////////////////////////////////
+    // What the IGD tells us
+    ////////////////////////////////////////////////
+
+    /**
+     * @return the external address the IGD thinks we have.  Blocking, unless we already know
+     * it. null if we can't find it.
+     */
+    String getNATAddress() {
+        return externalIP.get();
+    }
+
+    /**
+     * @return the status of the WAN connection, e.g. "Connected".  Blocking, unless we already
+     * know it. null if we can't find it.
+     */
+    String getConnectionStatus() {
+        return connectionStatus.get();
+    }
+
+    /**
+     * @return { upstream, downstream } in bits per second, -1 if not available.  Blocking,
+     * unless we already know them.
+     */
+    int[] getLinkBitRates() {
+        int[] rates = linkBitRates.get();
+
+        return (rates == null) ? new int[] { -1, -1 } : rates;
+    }
+
+    /**
+     * Handles a GENA event of the WAN connection service.
+     *
+     * @return whether our external address may have changed
+     */
+    boolean eventNotifyReceived(String varName, String value) {
+        if ("ExternalIPAddress".equals(varName)) {
+            if ((value == null) || (value.length() == 0)) {
+                externalIP.invalidate();
+            } else {
+                externalIP.set(value);
+            }
+
+            return true;
+        } else if ("ConnectionStatus".equals(varName)) {
+            connectionStatus.invalidate();
+            externalIP.invalidate();
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Forgets everything the IGD told us; to be called when it has restarted.
+     */
+    void invalidateCache() {
+        externalIP.invalidate();
+        connectionStatus.invalidate();
+        linkBitRates.invalidate();
+    }
+
+    void setCacheTTLs(long externalIPTTL, long connectionStatusTTL, long linkBitRatesTTL) {
+        externalIP.setTTL(externalIPTTL);
+        connectionStatus.setTTL(connectionStatusTTL);
+        linkBitRates.setTTL(linkBitRatesTTL);
+    }
+
+    private int[] fetchLinkBitRates() {
+        int[] rates = getBitRates(service, "GetLinkLayerMaxBitRates", "NewUpstreamMaxBitRate",
+                                  "NewDownstreamMaxBitRate");
+
+        if (rates == null) {
+            rates = getBitRates(service, "GetCommonLinkProperties", "NewLayer1UpstreamMaxBitRate",
+                                "NewLayer1DownstreamMaxBitRate");
+        }
+
+        if (rates == null) {
+
+            // Recurse
+            rates = getLinkBitRates(device);
+        }
+
+        if (rates == null) {
+
+            // Not available: don't ask again before the TTL expires
+            rates = new int[] { -1, -1 };
+        }
+
+        return rates;
+    }
+
+    /**
+     * Looks for a service telling us the link bit rates anywhere in the device tree.
+     *
+     * @return { upstream, downstream } or null if there is none
+     */
+    private int[] getLinkBitRates(Device dev) {
+        ServiceList sl = dev.getServiceList();
+
+        for (int i = 0; i < sl.size(); i++) {
+            Service serv = sl.getService(i);
+
+            if (serv == null) {
+                continue;
+            }
+
+            int[] rates = null;
+
+            if (WAN_COMMON_INTERFACE_CONFIG.equals(serv.getServiceType())) {
+                rates = getBitRates(serv, "GetCommonLinkProperties", "NewLayer1UpstreamMaxBitRate",
+                                    "NewLayer1DownstreamMaxBitRate");
+            } else if (WAN_PPP_CONNECTION.equals(serv.getServiceType())) {
+                rates = getBitRates(serv, "GetLinkLayerMaxBitRates", "NewUpstreamMaxBitRate",
+                                    "NewDownstreamMaxBitRate");
+            }
+
+            if (rates != null) {
+                return rates;
+            }
+        }
+
+        DeviceList dl = dev.getDeviceList();
+
+        for (int j = 0; j < dl.size(); j++) {
+            Device subDev = dl.getDevice(j);
+
+            if (subDev == null) {
+                continue;
+            }
+
+            int[] rates = getLinkBitRates(subDev);
+
+            if (rates != null) {
+                return rates;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return { upstream, downstream } as reported by that action, or null if it failed
+     */
+    private int[] getBitRates(Service serv, String action, String upstreamArgument,
+                              String downstreamArgument) {
+        ActionResponse res = invoke(serv, action);
+
+        if ((res == null) || !res.isSuccessful()) {
+            return null;
+        }
+
+        ArgumentList out = res.getResponse();
+        Argument up = out.getArgument(upstreamArgument);
+        Argument down = out.getArgument(downstreamArgument);
+
+        if ((up == null) || (down == null)) {
+            return null;
+        }
+
+        try {
+            return new int[] { Integer.parseInt(up.getValue().trim()),
+                               Integer.parseInt(down.getValue().trim()) };
+        } catch (NumberFormatException e) {
+
+            // ignore, try next
+            return null;
+        }
+    }
+
+    /**
+     * @return the value of an output argument of that action, or null if it failed
+     */
+    static String getOutputArgument(Service serv, String action, String argument) {
+        return getOutputArgument(postAction(serv, action), argument);
+    }
+
+    private static String getOutputArgument(ActionResponse res, String argument) {
+        if ((res == null) || !res.isSuccessful()) {
+            return null;
+        }
+
+        Argument arg = res.getResponse().getArgument(argument);
+
+        return (arg == null) ? null : arg.getValue();
+    }
+
+    /**
+     * Same as postAction(), and records how long the IGD took to answer.
+     */
+    private ActionResponse invoke(Service serv, String actionName, String... args) {
+        long start = System.currentTimeMillis();
+        ActionResponse res = postAction(serv, actionName, args);
+
+        if (res != null) {
+            upnp.getMetrics().recordAction(actionName, System.currentTimeMillis() - start,
+                                           res.isSuccessful());
+        }
+
+        return res;
+    }
+
+    /**
+     * Posts a control action with its own argument list. Action.postControlAction() keeps the
+     * argument values in the shared description tree, which isn't safe with several requests in
+     * flight at once.
+     *
+     * @param args the input arguments, as name/value pairs, in the order of the SCPD
+     * @return the response, or null if the service doesn't export that action
+     */
+    static ActionResponse postAction(Service service, String actionName, String... args) {
+        Action action = service.getAction(actionName);
+
+        if (action == null) {
+            return null;
+        }
+
+        ArgumentList argList = new ArgumentList();
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            argList.add(new Argument(args[i], args[i + 1]));
+        }
+
+        ActionRequest request = new ActionRequest();
+
+        request.setRequest(action, argList);
+
+        return request.post();
+    }
+
+    ////////////////////////////////////////////////
+    // Port mappings
+    ////////////////////////////////////////////////
+
+    /**
+     * @return the lease to ask for new mappings, in seconds; 0 means permanent
+     */
+    int getLeaseDuration() {
+        return onlyPermanentLeases ? 0 : upnp.getLeaseDuration();
+    }
+
+    /**
+     * @param lease the lease to ask for, in seconds; 0 means permanent
+     * @param removeFirst whether to delete whatever mapping the router may have for that port
+     *     first; if we know it has none, or that it is ours, we just add or overwrite it
+     */
+    boolean addMapping(String protocol, int port, String description, ForwardPort fp, int lease,
+                       boolean removeFirst) {
+
+        // Just in case...
+        if (removeFirst) {
+            removeMapping(protocol, port, fp, true);
+        }
+
+        ActionResponse res = postAddPortMapping(protocol, port, description, lease);
+
+        if (res == null) {
+            Logger.error(this, "Couldn't find AddPortMapping action!");
+
+            return false;
+        }
+
+        if ( !res.isSuccessful() && (lease != 0) &&
+                (res.getUPnPErrorCode() == ONLY_PERMANENT_LEASES_SUPPORTED)) {
+            Logger.normal(this,
+                          getFriendlyName() + " only supports permanent leases; falling back" +
+                          " to them.");
+            onlyPermanentLeases = true;
+            lease = 0;
+            res = postAddPortMapping(protocol, port, description, lease);
+        }
+
+        if (res.isSuccessful()) {
+            setForwarded(fp, lease);
+
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    private ActionResponse postAddPortMapping(String protocol, int port, String description,
+            int lease) {
+        String portString = Integer.toString(port);
+
+        return invoke(service, "AddPortMapping",
+                      "NewRemoteHost", "",
+                      "NewExternalPort", portString,
+                      "NewProtocol", protocol,
+                      "NewInternalPort", portString,
+                      "NewInternalClient", getInternalClient(),
+                      "NewEnabled", "1",
+                      "NewPortMappingDescription", description,
+                      "NewLeaseDuration", Integer.toString(lease));
+    }
+
+    boolean removeMapping(String protocol, int port, ForwardPort fp, boolean noLog) {
+        ActionResponse res = invoke(service, "DeletePortMapping",
+                                    "NewRemoteHost", "",
+                                    "NewExternalPort", Integer.toString(port),
+                                    "NewProtocol", protocol);
+
+        if (res == null) {
+            Logger.error(this, "Couldn't find DeletePortMapping action!");
+
+            return false;
+        }
+
+        boolean retval = res.isSuccessful();
+
+        synchronized (this) {
+            portsForwarded.remove(fp);
+        }
+
+        MappingJournal journal = upnp.getMappingJournal();
+
+        if ((journal != null) && (retval || (res.getUPnPErrorCode() == NO_SUCH_ENTRY_IN_ARRAY))) {
+            journal.removed(getUDN(), protocol, port);
+        }
+
+        if ( !noLog) {
+            System.err.println("UPnP: Removed mapping for " + ((fp == null) ? "" : fp.name + " ") +
+                               port + " / " + protocol + " on " + getFriendlyName());
+        }
+
+        return retval;
+    }
+
+    /**
+     * Reads the port mapping table of the IGD with GetGenericPortMappingEntry. Blocking.
+     *
+     * @return the entries, keyed by PortMappingEntry.getKey(), or null if the IGD can't
+     *     enumerate its table. At most MAX_PORT_MAPPING_ENTRIES entries are read.
+     */
+    Map<String, PortMappingEntry> getPortMappingTable() {
+        Map<String, PortMappingEntry> table = new HashMap<String, PortMappingEntry>();
+
+        for (int i = 0; i < MAX_PORT_MAPPING_ENTRIES; i++) {
+            ActionResponse res = invoke(service, "GetGenericPortMappingEntry",
+                                        "NewPortMappingIndex", Integer.toString(i));
+
+            if (res == null) {
+                return null;
+            }
+
+            if ( !res.isSuccessful()) {
+                int code = res.getUPnPErrorCode();
+
+                if ((i == 0) && (code != SPECIFIED_ARRAY_INDEX_INVALID) &&
+                        (code != NO_SUCH_ENTRY_IN_ARRAY)) {
+                    return null;
+                }
+
+                // End of the table
+                break;
+            }
+
+            PortMappingEntry entry = PortMappingEntry.parse(res.getResponse(), null, -1);
+
+            if (entry != null) {
+                table.put(entry.getKey(), entry);
+            }
+        }
+
+        return table;
+    }
+
+    /**
+     * Looks a single mapping up with GetSpecificPortMappingEntry. Blocking.
+     *
+     * @return the entry, PortMappingEntry.NONE if the IGD has no such mapping, or null if we
+     *     can't tell
+     */
+    PortMappingEntry getSpecificPortMapping(String protocol, int port) {
+        ActionResponse res = invoke(service, "GetSpecificPortMappingEntry",
+                                    "NewRemoteHost", "",
+                                    "NewExternalPort", Integer.toString(port),
+                                    "NewProtocol", protocol);
+
+        if (res == null) {
+            return null;
+        }
+
+        if ( !res.isSuccessful()) {
+            return (res.getUPnPErrorCode() == NO_SUCH_ENTRY_IN_ARRAY) ? PortMappingEntry.NONE
+                                                                     : null;
+        }
+
+        return PortMappingEntry.parse(res.getResponse(), protocol, port);
+    }
+
+    /**
+     * Records the boot id of an announcement of that IGD.
+     *
+     * @return whether it has changed, i.e. the IGD has restarted and forgotten our mappings
+     */
+    synchronized boolean updateBootId(String newBootId) {
+        if ((newBootId == null) || (newBootId.length() == 0)) {
+            return false;
+        }
+
+        boolean hasRestarted = (bootId != null) && !bootId.equals(newBootId);
+
+        bootId = newBootId;
+
+        return hasRestarted;
+    }
+
+    /**
+     * Forgets the ports we had forwarded on that IGD, e.g. because it has restarted.
+     */
+    synchronized void clearForwarded() {
+        portsForwarded.clear();
+    }
+
+    /**
+     * Records that the IGD has a mapping of ours for that port.
+     *
+     * @param lease what is left of its lease, in seconds; 0 means permanent
+     */
+    void setForwarded(ForwardPort fp, int lease) {
+        synchronized (this) {
+            portsForwarded.add(fp);
+        }
+
+        MappingJournal journal = upnp.getMappingJournal();
+
+        if (journal != null) {
+            journal.added(getUDN(), UPnP.getProtocol(fp), fp.portNumber, lease);
+        }
+    }
+
+    /**
+     * Records that the lease of our mapping of that port has run out without being renewed.
+     *
+     * @return whether we thought it was forwarded until now
+     */
+    boolean setExpired(ForwardPort fp) {
+        boolean wasForwarded;
+
+        synchronized (this) {
+            wasForwarded = portsForwarded.remove(fp);
+        }
+
+        MappingJournal journal = upnp.getMappingJournal();
+
+        if (journal != null) {
+            journal.removed(getUDN(), UPnP.getProtocol(fp), fp.portNumber);
+        }
+
+        return wasForwarded;
+    }
+
+    /**
+     * @return a copy of the list of ports we have forwarded on that IGD
+     */
+    synchronized Set<ForwardPort> getPortsForwarded() {
+        return new HashSet<ForwardPort>(portsForwarded);
+    }
+
+    synchronized void setPortStatus(ForwardPort fp, ForwardPortStatus status) {
+        portStatus.put(fp, status);
+    }
+
+    /**
+     * @return a copy of the last status reported for each port
+     */
+    synchronized Map<ForwardPort, ForwardPortStatus> getPortStatus() {
+        return new HashMap<ForwardPort, ForwardPortStatus>(portStatus);
+    }
+
+    /**
+     * Records how many times we asked the IGD for that port before getting an answer, or
+     * giving up.
+     */
+    synchronized void setPortTries(ForwardPort fp, int tries) {
+        portTries.put(fp, tries);
+    }
+
+    /**
+     * @return a copy of setPortTries()
+     */
+    synchronized Map<ForwardPort, Integer> getPortTries() {
+        return new HashMap<ForwardPort, Integer>(portTries);
+    }
+
+    synchronized void setLastError(String error) {
+        lastError = error;
+        lastErrorTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @return what last went wrong with that IGD, or null if nothing did
+     */
+    synchronized String getLastError() {
+        return lastError;
+    }
+
+    /**
+     * @return when getLastError() happened, in milliseconds since the epoch
+     */
+    synchronized long getLastErrorTime() {
+        return lastErrorTime;
+    }
+}
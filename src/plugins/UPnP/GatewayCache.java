@@ -0,0 +1,217 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+
+
+package plugins.UPnP;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.Properties;
+
+import plugins.UPnP.org.cybergarage.upnp.Device;
+import plugins.UPnP.org.cybergarage.upnp.Service;
+import plugins.UPnP.org.cybergarage.upnp.device.InvalidDescriptionException;
+import plugins.UPnP.org.cybergarage.upnp.ssdp.SSDPPacket;
+import plugins.UPnP.org.cybergarage.xml.Node;
+import plugins.UPnP.org.cybergarage.xml.ParserException;
+
+import freenet.support.Logger;
+
+/**
+ * Remembers the IGD we last used, so that the next run can talk to it straight away instead
+ * of waiting for SSDP discovery and downloading its descriptions again.
+ *
+ * We keep what it told us last time: the SSDP answer (for the LOCATION URL, the UDN and the
+ * interface we heard it on), the device description, and the SCPD of the connection service.
+ */
+final class GatewayCache {
+    private static final String UDN = "udn";
+    private static final String LOCATION = "location";
+    private static final String LOCAL_ADDRESS = "localAddress";
+    private static final String SSDP_PACKET = "ssdpPacket";
+    private static final String DESCRIPTION = "description";
+    private static final String SERVICE_TYPE = "serviceType";
+    private static final String CONTROL_URL = "controlURL";
+    private static final String SCPD = "scpd";
+
+    private final File file;
+
+    GatewayCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Rebuilds the IGD we saved last time. Nothing is sent on the network.
+     *
+     * @return the device, with the SCPD of its connection service already loaded, or null if
+     *     there is no usable cache
+     */
+    Device load() {
+        Properties props = new Properties();
+        InputStream in = null;
+
+        try {
+            in = new FileInputStream(file);
+            props.load(in);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Logger.error(this, "Couldn't read " + file, e);
+
+            return null;
+        } finally {
+            close(in);
+        }
+
+        String udn = props.getProperty(UDN);
+        String location = props.getProperty(LOCATION);
+        String localAddress = props.getProperty(LOCAL_ADDRESS);
+        String ssdp = props.getProperty(SSDP_PACKET);
+        String description = props.getProperty(DESCRIPTION);
+        String serviceType = props.getProperty(SERVICE_TYPE);
+        String controlURL = props.getProperty(CONTROL_URL);
+        String scpd = props.getProperty(SCPD);
+
+        if ((udn == null) || (location == null) || (localAddress == null) || (ssdp == null) ||
+                (description == null) || (serviceType == null) || (controlURL == null) ||
+                (scpd == null)) {
+            Logger.normal(this, file + " is incomplete, ignoring it");
+
+            return null;
+        }
+
+        try {
+            Node rootNode =
+                plugins.UPnP.org.cybergarage.upnp.UPnP.getXMLParser().parse(description);
+            Node devNode = rootNode.getNode(Device.ELEM_NAME);
+
+            if (devNode == null) {
+                return null;
+            }
+
+            Device device = new Device(rootNode, devNode);
+            byte[] data = ssdp.getBytes("ISO-8859-1");
+            SSDPPacket packet = new SSDPPacket(data, data.length);
+
+            packet.setLocalAddress(localAddress);
+            packet.setTimeStamp(System.currentTimeMillis());
+            device.setSSDPPacket(packet);
+
+            if ( !udn.equals(device.getUDN()) || !location.equals(device.getLocation())) {
+                Logger.normal(this, file + " doesn't make sense, ignoring it");
+
+                return null;
+            }
+
+            Service service = Gateway.findService(device);
+
+            if ((service == null) || !serviceType.equals(service.getServiceType()) ||
+                    !controlURL.equals(service.getControlURL())) {
+                Logger.normal(this, file + " doesn't make sense, ignoring it");
+
+                return null;
+            }
+
+            service.loadSCPD(scpd);
+
+            return device;
+        } catch (ParserException e) {
+            Logger.error(this, "Couldn't parse " + file, e);
+        } catch (InvalidDescriptionException e) {
+            Logger.error(this, "Couldn't parse " + file, e);
+        } catch (IOException e) {
+            Logger.error(this, "Couldn't parse " + file, e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Saves that IGD for the next run. Blocking: it may have to download the SCPD.
+     */
+    void save(Gateway gateway) {
+        Device device = gateway.getDevice();
+        Service service = gateway.getService();
+        SSDPPacket packet = device.getSSDPPacket();
+
+        if (packet == null) {
+            return;
+        }
+
+        byte[] scpd = service.getSCPDData();
+
+        if (scpd.length == 0) {
+            return;
+        }
+
+        Properties props = new Properties();
+        OutputStream out = null;
+        File tmp = new File(file.getPath() + ".tmp");
+
+        try {
+            props.setProperty(UDN, device.getUDN());
+            props.setProperty(LOCATION, device.getLocation());
+            props.setProperty(LOCAL_ADDRESS, packet.getLocalAddress());
+            props.setProperty(SSDP_PACKET, new String(packet.getData(), "ISO-8859-1"));
+            props.setProperty(DESCRIPTION, device.getRootNode().toString());
+            props.setProperty(SERVICE_TYPE, service.getServiceType());
+            props.setProperty(CONTROL_URL, service.getControlURL());
+            props.setProperty(SCPD, new String(scpd, "UTF-8"));
+
+            out = new FileOutputStream(tmp);
+            props.store(out, "Last UPnP IGD used by the UPnP plugin");
+            out.close();
+            out = null;
+
+            // Not atomic on Windows, but a broken cache only costs us a discovery
+            file.delete();
+
+            if ( !tmp.renameTo(file)) {
+                throw new IOException("Couldn't rename " + tmp + " to " + file);
+            }
+
+            Logger.minor(this, "Saved " + gateway + " to " + file);
+        } catch (IOException e) {
+            Logger.error(this, "Couldn't write " + file, e);
+            tmp.delete();
+        } finally {
+            close(out);
+        }
+    }
+
+    /**
+     * Forgets the saved IGD, e.g. because it doesn't answer anymore.
+     */
+    void delete() {
+        file.delete();
+    }
+
+    private static void close(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+
+                // Ignore
+            }
+        }
+    }
+
+    private static void close(OutputStream out) {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+
+                // Ignore
+            }
+        }
+    }
+}
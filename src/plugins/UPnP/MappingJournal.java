@@ -0,0 +1,235 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+
+
+package plugins.UPnP;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import freenet.support.Logger;
+
+/**
+ * Append-only record of the port mappings we have made, so that a run following a crash knows
+ * what is left on the routers: the mappings nobody wants anymore are deleted, and those which
+ * are still valid don't need to be added again.
+ *
+ * Each line is either "+ udn protocol port expiry" or "- udn protocol port", the expiry being
+ * in milliseconds since the epoch, 0 for a permanent mapping. The file is rewritten with only
+ * the live mappings once enough lines have piled up.
+ */
+final class MappingJournal {
+    /** Don't rewrite the file before that many lines have been appended since the last time */
+    private static final int COMPACTION_THRESHOLD = 64;
+
+    private static final String ADDED = "+";
+    private static final String REMOVED = "-";
+
+    private final File file;
+
+    /** What we believe the routers have, "udn protocol port" -> expiry */
+    private final Map<String, Long> live = new LinkedHashMap<String, Long>();
+
+    /** What the previous runs left behind and no gateway has claimed yet */
+    private final Map<String, Long> recovered = new HashMap<String, Long>();
+
+    /** Lines appended since the file was last rewritten */
+    private int appended = 0;
+
+    MappingJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Replays the journal the previous runs left behind, then compacts it. Blocking.
+     */
+    synchronized void load() {
+        BufferedReader in = null;
+
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+
+            String line;
+
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.trim().split(" ");
+
+                try {
+                    if (ADDED.equals(fields[0]) && (fields.length == 5)) {
+                        live.put(getKey(fields[1], fields[2], Integer.parseInt(fields[3])),
+                                 Long.parseLong(fields[4]));
+                    } else if (REMOVED.equals(fields[0]) && (fields.length == 4)) {
+                        live.remove(getKey(fields[1], fields[2], Integer.parseInt(fields[3])));
+                    }
+                } catch (NumberFormatException e) {
+
+                    // A line cut short by a crash: ignore it
+                }
+            }
+        } catch (FileNotFoundException e) {
+
+            // First run
+        } catch (IOException e) {
+            Logger.error(this, "Couldn't read " + file, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+
+                    // Ignore
+                }
+            }
+        }
+
+        recovered.putAll(live);
+
+        if ( !recovered.isEmpty()) {
+            Logger.normal(this, "The previous run left " + recovered.size() + " port mapping(s)");
+        }
+
+        compact();
+    }
+
+    /**
+     * Records that a mapping has been made, or renewed.
+     *
+     * @param lease the lease we got, in seconds; 0 means permanent
+     */
+    synchronized void added(String udn, String protocol, int port, int lease) {
+        long expiry = (lease == 0) ? 0 : System.currentTimeMillis() + (lease * 1000L);
+
+        live.put(getKey(udn, protocol, port), expiry);
+        append(ADDED + " " + getKey(udn, protocol, port) + " " + expiry);
+    }
+
+    /**
+     * Records that a mapping has been deleted.
+     */
+    synchronized void removed(String udn, String protocol, int port) {
+        if (live.remove(getKey(udn, protocol, port)) != null) {
+            append(REMOVED + " " + getKey(udn, protocol, port));
+        }
+    }
+
+    /**
+     * @return whether this node has made that mapping, in this run or a previous one, and
+     *     hasn't deleted it since
+     */
+    synchronized boolean contains(String udn, String protocol, int port) {
+        return live.containsKey(getKey(udn, protocol, port));
+    }
+
+    /**
+     * Hands the mappings the previous runs made on that gateway over to the caller; they are
+     * only handed over once.
+     *
+     * @return PortMappingEntry.getKey() -> expiry, 0 meaning permanent
+     */
+    synchronized Map<String, Long> takeRecovered(String udn) {
+        Map<String, Long> result = new HashMap<String, Long>();
+        String prefix = udn + " ";
+
+        for (Iterator<Map.Entry<String, Long>> it = recovered.entrySet().iterator();
+                it.hasNext(); ) {
+            Map.Entry<String, Long> entry = it.next();
+
+            if (entry.getKey().startsWith(prefix)) {
+                String[] fields = entry.getKey().split(" ");
+
+                result.put(PortMappingEntry.getKey(fields[1], Integer.parseInt(fields[2])),
+                           entry.getValue());
+                it.remove();
+            }
+        }
+
+        return result;
+    }
+
+    private static String getKey(String udn, String protocol, int port) {
+        return udn + " " + protocol + " " + port;
+    }
+
+    private void append(String line) {
+        if ((++appended >= COMPACTION_THRESHOLD) && (appended > 2 * live.size())) {
+            compact();
+
+            return;
+        }
+
+        write(file, line + "\n", true);
+    }
+
+    /**
+     * Rewrites the file with only the live mappings which haven't expired.
+     */
+    private void compact() {
+        long now = System.currentTimeMillis();
+        StringBuilder sb = new StringBuilder();
+
+        for (Iterator<Map.Entry<String, Long>> it = live.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Long> entry = it.next();
+            long expiry = entry.getValue();
+
+            if ((expiry != 0) && (expiry < now)) {
+                it.remove();
+
+                continue;
+            }
+
+            sb.append(ADDED).append(' ').append(entry.getKey()).append(' ').append(expiry).append(
+                '\n');
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        if (write(tmp, sb.toString(), false)) {
+
+            // Not atomic on Windows, but we can live with losing the journal
+            file.delete();
+
+            if ( !tmp.renameTo(file)) {
+                Logger.error(this, "Couldn't rename " + tmp + " to " + file);
+            }
+        }
+
+        appended = 0;
+    }
+
+    private boolean write(File target, String data, boolean append) {
+        OutputStream out = null;
+
+        try {
+            out = new FileOutputStream(target, append);
+            out.write(data.getBytes("UTF-8"));
+            out.close();
+            out = null;
+
+            return true;
+        } catch (IOException e) {
+            Logger.error(this, "Couldn't write " + target, e);
+
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+
+                    // Ignore
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,434 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+
+
+package plugins.UPnP;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import freenet.pluginmanager.ForwardPort;
+import freenet.pluginmanager.ForwardPortStatus;
+
+import plugins.UPnP.org.cybergarage.upnp.ControlPoint;
+import plugins.UPnP.org.cybergarage.upnp.ssdp.SSDP;
+import plugins.UPnP.org.cybergarage.util.ListenerDispatcher;
+
+/**
+ * Counters kept on the hot paths, so that the health of the plugin can be reported without
+ * ever asking an IGD anything. Everything is lock-free.
+ */
+final class Metrics {
+    /** Upper bounds of the latency buckets, in milliseconds; the last bucket is unbounded */
+    static final long[] LATENCY_BUCKETS = {
+        10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000
+    };
+
+    /** When the plugin started, in milliseconds since the epoch */
+    final long startTime = System.currentTimeMillis();
+
+    /** SOAP latency per action name */
+    private final ConcurrentHashMap<String, Histogram> actions =
+        new ConcurrentHashMap<String, Histogram>();
+
+    /** AddPortMapping requests, first attempts and retries alike */
+    final AtomicLong mappingAttempts = new AtomicLong();
+    final AtomicLong mappingRetries = new AtomicLong();
+    final AtomicLong mappingSuccesses = new AtomicLong();
+    final AtomicLong mappingFailures = new AtomicLong();
+    final AtomicLong mappingRenewals = new AtomicLong();
+
+    /** How long it took to find the first IGD, in milliseconds; -1 until then */
+    private final AtomicLong discoveryTime = new AtomicLong(-1);
+
+    /**
+     * Records a SOAP request.
+     *
+     * @param isSuccessful whether the IGD answered it without a fault
+     */
+    void recordAction(String action, long millis, boolean isSuccessful) {
+        Histogram histogram = actions.get(action);
+
+        if (histogram == null) {
+            Histogram created = new Histogram();
+
+            histogram = actions.putIfAbsent(action, created);
+
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+
+        histogram.record(millis, isSuccessful);
+    }
+
+    /**
+     * @return the latency of each action, sorted by name
+     */
+    Map<String, Histogram> getActions() {
+        return new TreeMap<String, Histogram>(actions);
+    }
+
+    /**
+     * Records that an IGD has been found; only the first one counts.
+     */
+    void recordDiscovery() {
+        discoveryTime.compareAndSet(-1, System.currentTimeMillis() - startTime);
+    }
+
+    long getDiscoveryTime() {
+        return discoveryTime.get();
+    }
+
+    /**
+     * @return everything we know, as a JSON document
+     */
+    String toJSON(StatusSnapshot snapshot, ControlPoint controlPoint) {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("{\"timestamp\":").append(snapshot.timestamp);
+        sb.append(",\"uptimeMs\":").append(System.currentTimeMillis() - startTime);
+        sb.append(",\"discoveryTimeMs\":").append(getDiscoveryTime());
+        sb.append(",\"ssdp\":{\"packetsReceived\":").append(controlPoint.getSSDPPacketsReceived());
+        sb.append(",\"packetsFiltered\":").append(controlPoint.getSSDPPacketsFiltered());
+        sb.append(",\"packetsDropped\":").append(controlPoint.getSSDPPacketsDropped());
+        sb.append(",\"packetsTruncated\":").append(SSDP.getTruncatedPacketCount()).append('}');
+        sb.append(",\"listeners\":{\"queueDepth\":").append(controlPoint.getListenerQueueDepth());
+        sb.append(",\"slowCalls\":").append(controlPoint.getSlowListenerCalls());
+        sb.append(",\"failedCalls\":").append(controlPoint.getFailedListenerCalls()).append('}');
+        sb.append(",\"mappings\":{\"attempts\":").append(mappingAttempts.get());
+        sb.append(",\"retries\":").append(mappingRetries.get());
+        sb.append(",\"successes\":").append(mappingSuccesses.get());
+        sb.append(",\"failures\":").append(mappingFailures.get());
+        sb.append(",\"renewals\":").append(mappingRenewals.get()).append('}');
+        sb.append(",\"actions\":{");
+
+        boolean isFirst = true;
+
+        for (Map.Entry<String, Histogram> entry : getActions().entrySet()) {
+            Histogram histogram = entry.getValue();
+
+            if ( !isFirst) {
+                sb.append(',');
+            }
+
+            isFirst = false;
+            appendJSONString(sb, entry.getKey());
+            sb.append(":{\"count\":").append(histogram.getCount());
+            sb.append(",\"errors\":").append(histogram.getErrors());
+            sb.append(",\"sumMs\":").append(histogram.getSum());
+            sb.append(",\"p50Ms\":");
+            appendJSONPercentile(sb, histogram.getPercentile(0.5));
+            sb.append(",\"p90Ms\":");
+            appendJSONPercentile(sb, histogram.getPercentile(0.9));
+            sb.append(",\"p99Ms\":");
+            appendJSONPercentile(sb, histogram.getPercentile(0.99));
+            sb.append('}');
+        }
+
+        sb.append("},\"gateways\":[");
+        isFirst = true;
+
+        for (StatusSnapshot.GatewayStatus gateway : snapshot.gateways) {
+            if ( !isFirst) {
+                sb.append(',');
+            }
+
+            isFirst = false;
+            sb.append("{\"udn\":");
+            appendJSONString(sb, gateway.udn);
+            sb.append(",\"friendlyName\":");
+            appendJSONString(sb, gateway.friendlyName);
+            sb.append(",\"primary\":").append(gateway.isPrimary);
+            sb.append(",\"active\":").append(gateway.isActive);
+            sb.append(",\"fromCache\":").append(gateway.isFromCache);
+            sb.append(",\"externalIP\":");
+            appendJSONString(sb, gateway.externalIP);
+            sb.append(",\"connectionStatus\":");
+            appendJSONString(sb, gateway.connectionStatus);
+            sb.append(",\"upstreamMaxBitRate\":").append(gateway.upstreamMaxBitRate);
+            sb.append(",\"downstreamMaxBitRate\":").append(gateway.downstreamMaxBitRate);
+            sb.append(",\"lastError\":");
+            appendJSONString(sb, gateway.lastError);
+            sb.append(",\"lastErrorTime\":").append(gateway.lastErrorTime);
+            sb.append(",\"ports\":[");
+
+            boolean isFirstPort = true;
+
+            for (ForwardPort port : snapshot.portsToForward) {
+                ForwardPortStatus portStatus = gateway.portStatus.get(port);
+                Integer tries = gateway.portTries.get(port);
+
+                if ( !isFirstPort) {
+                    sb.append(',');
+                }
+
+                isFirstPort = false;
+                sb.append("{\"name\":");
+                appendJSONString(sb, port.name);
+                sb.append(",\"port\":").append(port.portNumber);
+                sb.append(",\"protocol\":");
+                appendJSONString(sb, UPnP.getProtocol(port));
+                sb.append(",\"forwarded\":").append(gateway.portsForwarded.contains(port));
+                sb.append(",\"tries\":").append((tries == null) ? 0 : tries.intValue());
+                sb.append(",\"status\":");
+
+                if (portStatus == null) {
+                    sb.append("null");
+                } else {
+                    sb.append(portStatus.status);
+                }
+
+                sb.append(",\"reason\":");
+                appendJSONString(sb, (portStatus == null) ? null : portStatus.reasonString);
+                sb.append('}');
+            }
+
+            sb.append("]}");
+        }
+
+        sb.append("]}");
+
+        return sb.toString();
+    }
+
+    /**
+     * @return everything we know, in the Prometheus text exposition format
+     */
+    String toPrometheus(StatusSnapshot snapshot, ControlPoint controlPoint) {
+        StringBuilder sb = new StringBuilder();
+
+        appendCounter(sb, "upnp_ssdp_packets_received_total", "SSDP packets received",
+                      controlPoint.getSSDPPacketsReceived());
+        appendCounter(sb, "upnp_ssdp_packets_filtered_total",
+                      "SSDP packets about devices we aren't interested in",
+                      controlPoint.getSSDPPacketsFiltered());
+        appendCounter(sb, "upnp_ssdp_packets_dropped_total",
+                      "SSDP packets lost to full queues or unusable descriptions",
+                      controlPoint.getSSDPPacketsDropped());
+        appendCounter(sb, "upnp_ssdp_packets_truncated_total",
+                      "SSDP packets larger than the receive buffer",
+                      SSDP.getTruncatedPacketCount());
+        sb.append("# HELP upnp_listener_queue_depth Events waiting for a listener\n");
+        sb.append("# TYPE upnp_listener_queue_depth gauge\n");
+        sb.append("upnp_listener_queue_depth ").append(controlPoint.getListenerQueueDepth());
+        sb.append('\n');
+        appendCounter(sb, "upnp_listener_slow_calls_total", "Listener calls which took over "
+                      + ListenerDispatcher.DEFAULT_SLOW_CALL_THRESHOLD + " ms",
+                      controlPoint.getSlowListenerCalls());
+        appendCounter(sb, "upnp_listener_failed_calls_total", "Listener calls which threw",
+                      controlPoint.getFailedListenerCalls());
+        appendCounter(sb, "upnp_mapping_attempts_total", "AddPortMapping requests",
+                      mappingAttempts.get());
+        appendCounter(sb, "upnp_mapping_retries_total",
+                      "AddPortMapping requests which were retries", mappingRetries.get());
+        appendCounter(sb, "upnp_mapping_successes_total", "Successful AddPortMapping requests",
+                      mappingSuccesses.get());
+        appendCounter(sb, "upnp_mapping_failures_total", "Ports we gave up on",
+                      mappingFailures.get());
+        appendCounter(sb, "upnp_mapping_renewals_total", "Leases renewed",
+                      mappingRenewals.get());
+
+        long discovery = getDiscoveryTime();
+
+        if (discovery >= 0) {
+            sb.append("# HELP upnp_discovery_seconds How long it took to find the first IGD\n");
+            sb.append("# TYPE upnp_discovery_seconds gauge\n");
+            sb.append("upnp_discovery_seconds ").append(discovery / 1000.0).append('\n');
+        }
+
+        sb.append("# HELP upnp_soap_request_duration_seconds SOAP requests to the IGDs\n");
+        sb.append("# TYPE upnp_soap_request_duration_seconds histogram\n");
+
+        for (Map.Entry<String, Histogram> entry : getActions().entrySet()) {
+            String action = escapeLabel(entry.getKey());
+            Histogram histogram = entry.getValue();
+
+            for (int i = 0; i <= LATENCY_BUCKETS.length; i++) {
+                sb.append("upnp_soap_request_duration_seconds_bucket{action=\"").append(action);
+                sb.append("\",le=\"");
+
+                if (i < LATENCY_BUCKETS.length) {
+                    sb.append(LATENCY_BUCKETS[i] / 1000.0);
+                } else {
+                    sb.append("+Inf");
+                }
+
+                sb.append("\"} ").append(histogram.getCumulativeCount(i)).append('\n');
+            }
+
+            sb.append("upnp_soap_request_duration_seconds_sum{action=\"").append(action);
+            sb.append("\"} ").append(histogram.getSum() / 1000.0).append('\n');
+            sb.append("upnp_soap_request_duration_seconds_count{action=\"").append(action);
+            sb.append("\"} ").append(histogram.getCount()).append('\n');
+        }
+
+        sb.append("# HELP upnp_soap_request_errors_total SOAP requests the IGDs refused\n");
+        sb.append("# TYPE upnp_soap_request_errors_total counter\n");
+
+        for (Map.Entry<String, Histogram> entry : getActions().entrySet()) {
+            sb.append("upnp_soap_request_errors_total{action=\"");
+            sb.append(escapeLabel(entry.getKey())).append("\"} ");
+            sb.append(entry.getValue().getErrors()).append('\n');
+        }
+
+        sb.append("# HELP upnp_port_forwarded Whether the port is forwarded on that IGD\n");
+        sb.append("# TYPE upnp_port_forwarded gauge\n");
+
+        StringBuilder tries = new StringBuilder();
+
+        for (StatusSnapshot.GatewayStatus gateway : snapshot.gateways) {
+            for (ForwardPort port : snapshot.portsToForward) {
+                String labels = "{udn=\"" + escapeLabel(gateway.udn) + "\",name=\"" +
+                                escapeLabel(port.name) + "\",port=\"" + port.portNumber +
+                                "\",protocol=\"" + UPnP.getProtocol(port) + "\"}";
+                Integer count = gateway.portTries.get(port);
+
+                sb.append("upnp_port_forwarded").append(labels).append(' ');
+                sb.append(gateway.portsForwarded.contains(port) ? 1 : 0).append('\n');
+                tries.append("upnp_port_tries").append(labels).append(' ');
+                tries.append((count == null) ? 0 : count.intValue()).append('\n');
+            }
+        }
+
+        sb.append("# HELP upnp_port_tries AddPortMapping requests the port last took\n");
+        sb.append("# TYPE upnp_port_tries gauge\n");
+        sb.append(tries);
+
+        return sb.toString();
+    }
+
+    private static void appendCounter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String escapeLabel(String value) {
+        if (value == null) {
+            return "";
+        }
+
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static void appendJSONPercentile(StringBuilder sb, long millis) {
+        if (millis < 0) {
+            sb.append("null");
+        } else if (millis == Long.MAX_VALUE) {
+
+            // Slower than the last bucket
+            sb.append("\"+Inf\"");
+        } else {
+            sb.append(millis);
+        }
+    }
+
+    private static void appendJSONString(StringBuilder sb, String value) {
+        if (value == null) {
+            sb.append("null");
+
+            return;
+        }
+
+        sb.append('"');
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if ((c == '"') || (c == '\\')) {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+
+        sb.append('"');
+    }
+
+    /**
+     * A latency histogram with fixed buckets.
+     */
+    static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(LATENCY_BUCKETS.length + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+
+        /** In milliseconds */
+        private final AtomicLong sum = new AtomicLong();
+
+        void record(long millis, boolean isSuccessful) {
+            int i = 0;
+
+            while ((i < LATENCY_BUCKETS.length) && (millis > LATENCY_BUCKETS[i])) {
+                i++;
+            }
+
+            buckets.incrementAndGet(i);
+            count.incrementAndGet();
+            sum.addAndGet(millis);
+
+            if ( !isSuccessful) {
+                errors.incrementAndGet();
+            }
+        }
+
+        long getCount() {
+            return count.get();
+        }
+
+        long getErrors() {
+            return errors.get();
+        }
+
+        long getSum() {
+            return sum.get();
+        }
+
+        /**
+         * @return how many requests took at most LATENCY_BUCKETS[i], or any time at all for the
+         *     last bucket
+         */
+        long getCumulativeCount(int i) {
+            long total = 0;
+
+            for (int j = 0; j <= i; j++) {
+                total += buckets.get(j);
+            }
+
+            return total;
+        }
+
+        /**
+         * @param q between 0 and 1
+         * @return the upper bound of the bucket the q-quantile falls in, in milliseconds; -1 if
+         *     there is no sample, Long.MAX_VALUE if it falls past the last bound
+         */
+        long getPercentile(double q) {
+            long total = getCumulativeCount(LATENCY_BUCKETS.length);
+
+            if (total == 0) {
+                return -1;
+            }
+
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                seen += buckets.get(i);
+
+                if (seen >= rank) {
+                    return LATENCY_BUCKETS[i];
+                }
+            }
+
+            return Long.MAX_VALUE;
+        }
+    }
+}
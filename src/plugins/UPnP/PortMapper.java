@@ -0,0 +1,593 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+
+
+package plugins.UPnP;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import freenet.pluginmanager.ForwardPort;
+import freenet.pluginmanager.ForwardPortStatus;
+
+import freenet.support.Logger;
+
+/**
+ * Asynchronous port mapping engine of a {@link Gateway}.
+ *
+ * Every port handed to {@link #forward(Set)} gets its own task on the plugin's bounded pool: all the
+ * AddPortMapping requests go out at once, failed attempts are rescheduled on the same pool
+ * instead of sleeping, and the status of each port is reported as soon as it is known.
+ *
+ * Leased mappings are renewed at a fraction of their lease. The renewals of all the ports share
+ * a single timer, armed for the earliest one. A renewal the IGD refuses is tried again on that
+ * timer, backing off, for as long as it takes; once the lease has run out the port is reported
+ * as no longer forwarded.
+ *
+ * When reconciling, we look at what the router already has before touching it: mappings which
+ * are in place are left alone, and only the missing ones get added.
+ */
+class PortMapper {
+    /** Number of AddPortMapping attempts before we give up on a port */
+    static final int MAX_TRIES = 5;
+
+    /** Delay between two attempts on the same port, in milliseconds */
+    static final long RETRY_DELAY = 5000;
+
+    /** Mappings are renewed once that fraction of their lease has elapsed */
+    static final double RENEWAL_FRACTION = 0.5;
+
+    /** Renewals are spread by up to that fraction of the lease either way */
+    static final double RENEWAL_JITTER = 0.1;
+
+    /** Delay before trying a failed renewal again; doubled after each failure */
+    static final long RENEWAL_RETRY_DELAY = 30 * 1000;
+
+    /** Upper bound of the backoff of failed renewals */
+    static final long MAX_RENEWAL_RETRY_DELAY = 15 * 60 * 1000;
+
+    /** All our mappings are described that way */
+    static final String DESCRIPTION_PREFIX = "Freenet 0.7 ";
+
+    /** What we know about the router's table when a task starts */
+    private enum Mode {
+        /** Nothing: remove whatever may be there, then add the mapping */
+        BLIND,
+
+        /** Look the port up with GetSpecificPortMappingEntry first */
+        CHECK,
+
+        /** The port isn't mapped yet: just add it */
+        ADD,
+
+        /** We own that mapping already: overwrite it to extend its lease */
+        RENEW
+    }
+
+    private final UPnP upnp;
+    private final Gateway gateway;
+    private final ScheduledThreadPoolExecutor executor;
+
+    /**
+     * The task in charge of each port. A task which isn't registered here anymore has been
+     * cancelled and must not touch the router again.
+     */
+    private final ConcurrentHashMap<ForwardPort, MappingTask> tasks;
+
+    /** When each leased mapping is due for renewal. Protected by synchronized (this). */
+    private final Map<ForwardPort, Long> renewals;
+
+    /** When the lease of each leased mapping runs out. Protected by synchronized (this). */
+    private final Map<ForwardPort, Long> leaseExpiries;
+
+    /** How many renewals of each port have failed in a row. Protected by synchronized (this). */
+    private final Map<ForwardPort, Integer> renewalFailures;
+
+    /** The one timer for all the renewals, and when it fires */
+    private ScheduledFuture<?> renewalTimer;
+    private long renewalTimerDeadline;
+
+    private final Random random = new Random();
+
+    PortMapper(UPnP upnp, Gateway gateway) {
+        this.upnp = upnp;
+        this.gateway = gateway;
+        this.tasks = new ConcurrentHashMap<ForwardPort, MappingTask>();
+        this.renewals = new HashMap<ForwardPort, Long>();
+        this.leaseExpiries = new HashMap<ForwardPort, Long>();
+        this.renewalFailures = new HashMap<ForwardPort, Integer>();
+        this.executor = upnp.getExecutor();
+    }
+
+    /**
+     * Queues an AddPortMapping for each of the given ports and returns immediately. Ports
+     * which already have a task pending are restarted from scratch.
+     */
+    void forward(Set<ForwardPort> ports) {
+        for (MappingTask task : register(ports, upnp.isReconcilingMappings() ? Mode.CHECK
+                                                                            : Mode.BLIND)) {
+            submit(task, 0);
+        }
+    }
+
+    /**
+     * Brings the router's table in line with the given ports: reads it once, leaves alone the
+     * mappings which are already there, adds the missing ones and deletes those we created for
+     * ports nobody wants anymore, according to the journal. If the IGD can't enumerate its table, each port is looked up
+     * on its own instead. Returns immediately.
+     */
+    void reconcile(Set<ForwardPort> ports) {
+        final List<MappingTask> pending = register(ports, Mode.CHECK);
+
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    reconcile(pending);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+
+            // We are shutting down
+        }
+    }
+
+    /**
+     * Creates and registers a task for each port, without starting them. Ports we can't forward
+     * are reported right away.
+     */
+    private List<MappingTask> register(Iterable<ForwardPort> ports, Mode mode) {
+        List<MappingTask> registered = new ArrayList<MappingTask>();
+
+        for (ForwardPort port : ports) {
+            String proto = UPnP.getProtocol(port);
+
+            if (proto == null) {
+                upnp.portForwardStatus(gateway, port,
+                                       new ForwardPortStatus(ForwardPortStatus.DEFINITE_FAILURE,
+                                           "Protocol not supported", port.portNumber));
+
+                continue;
+            }
+
+            MappingTask task = new MappingTask(port, proto, mode);
+
+            if (mode == Mode.RENEW) {
+
+                // Don't step on a port which is being (re)forwarded already
+                if (tasks.putIfAbsent(port, task) != null) {
+                    continue;
+                }
+            } else {
+                cancelRenewal(port);
+                tasks.put(port, task);
+            }
+
+            registered.add(task);
+        }
+
+        return registered;
+    }
+
+    private void reconcile(List<MappingTask> pending) {
+        Map<String, PortMappingEntry> table = gateway.getPortMappingTable();
+        String client = gateway.getInternalClient();
+
+        if ((table == null) || (client == null)) {
+            Logger.normal(this,
+                          "Couldn't read the port mapping table of " + gateway +
+                          ", looking each port up");
+
+            for (MappingTask task : pending) {
+                submit(task, 0);
+            }
+
+            return;
+        }
+
+        // If the table is too big to be read whole, we can't tell a port is missing from it
+        boolean isComplete = table.size() < Gateway.MAX_PORT_MAPPING_ENTRIES;
+        int kept = 0;
+
+        for (MappingTask task : pending) {
+            PortMappingEntry entry = table.remove(PortMappingEntry.getKey(task.proto,
+                                                      task.port.portNumber));
+
+            if ((entry != null) && entry.isOwnedBy(client)) {
+                if (tasks.remove(task.port, task)) {
+                    gateway.setForwarded(task.port, entry.leaseDuration);
+                    task.finish(true, entry.leaseDuration);
+                    kept++;
+                }
+
+                continue;
+            }
+
+            if (isComplete) {
+
+                // Either missing or somebody else's: AddPortMapping will tell us about conflicts
+                task.mode = Mode.ADD;
+            }
+
+            submit(task, 0);
+        }
+
+        // Whatever we created and is left over has been forgotten by a previous run. Only the
+        // journal can tell: another node on the same host has the same address and descriptions.
+        MappingJournal journal = upnp.getMappingJournal();
+
+        for (PortMappingEntry entry : table.values()) {
+            if ((journal != null) && entry.isOwnedBy(client) &&
+                    journal.contains(gateway.getUDN(), entry.protocol, entry.externalPort) &&
+                    !upnp.isForwardWanted(entry.protocol, entry.externalPort)) {
+                Logger.normal(this, "Removing a stale port mapping: " + entry);
+                gateway.removeMapping(entry.protocol, entry.externalPort, null, true);
+            }
+        }
+
+        Logger.normal(this,
+                      "Reconciled " + pending.size() + " port(s) against the table of " + gateway +
+                      ": " + kept + " already forwarded");
+    }
+
+    /**
+     * Takes over a mapping a previous run made and which should still be there, without asking
+     * the IGD: it is reported as forwarded and renewed in time.
+     *
+     * @param lease what is left of its lease, in seconds; 0 means permanent
+     */
+    void adopt(ForwardPort port, int lease) {
+        MappingTask task = new MappingTask(port, UPnP.getProtocol(port), Mode.CHECK);
+
+        cancel(port);
+        gateway.setForwarded(port, lease);
+        task.finish(true, lease);
+    }
+
+    /**
+     * Drops any pending work for the given port. An AddPortMapping already in flight is undone
+     * as soon as it completes.
+     */
+    void cancel(ForwardPort port) {
+        tasks.remove(port);
+        cancelRenewal(port);
+    }
+
+    /**
+     * Cancels all pending work and renewals; to be called when we stop using the gateway.
+     */
+    void shutdown() {
+        tasks.clear();
+
+        synchronized (this) {
+            renewals.clear();
+            leaseExpiries.clear();
+            renewalFailures.clear();
+
+            if (renewalTimer != null) {
+                renewalTimer.cancel(false);
+                renewalTimer = null;
+            }
+        }
+    }
+
+    /**
+     * Renews the mapping of that port before its lease runs out.
+     *
+     * @param lease the lease we got, in seconds
+     */
+    private void scheduleRenewal(ForwardPort port, int lease) {
+        double fraction = RENEWAL_FRACTION + (RENEWAL_JITTER * ((2 * random.nextDouble()) - 1));
+        long now = System.currentTimeMillis();
+        long deadline = now + (long) (lease * 1000L * fraction);
+
+        synchronized (this) {
+            renewals.put(port, deadline);
+            leaseExpiries.put(port, now + (lease * 1000L));
+            renewalFailures.remove(port);
+            armRenewalTimer();
+        }
+    }
+
+    /**
+     * Schedules another try at a renewal the IGD has refused, backing off after each failure.
+     *
+     * @return whether the lease of the mapping is still running
+     */
+    private synchronized boolean retryRenewal(ForwardPort port) {
+        long now = System.currentTimeMillis();
+        Integer failures = renewalFailures.get(port);
+        int n = (failures == null) ? 0 : failures;
+        long delay = Math.min(RENEWAL_RETRY_DELAY << Math.min(n, 16), MAX_RENEWAL_RETRY_DELAY);
+
+        renewalFailures.put(port, n + 1);
+        renewals.put(port, now + delay);
+        armRenewalTimer();
+
+        Long expiry = leaseExpiries.get(port);
+
+        if ((expiry != null) && (now < expiry)) {
+            return true;
+        }
+
+        leaseExpiries.remove(port);
+
+        return false;
+    }
+
+    /**
+     * @return whether we believe the IGD still has our leased mapping of that port
+     */
+    private synchronized boolean isLeaseRunning(ForwardPort port) {
+        return leaseExpiries.containsKey(port);
+    }
+
+    private synchronized void cancelRenewal(ForwardPort port) {
+        renewals.remove(port);
+        leaseExpiries.remove(port);
+        renewalFailures.remove(port);
+    }
+
+    /**
+     * Makes sure the renewal timer fires in time for the earliest renewal.
+     */
+    private synchronized void armRenewalTimer() {
+        if (renewals.isEmpty() || executor.isShutdown()) {
+            return;
+        }
+
+        long earliest = Long.MAX_VALUE;
+
+        for (long deadline : renewals.values()) {
+            earliest = Math.min(earliest, deadline);
+        }
+
+        if ((renewalTimer != null) && (renewalTimerDeadline <= earliest)) {
+            return;
+        }
+
+        if (renewalTimer != null) {
+            renewalTimer.cancel(false);
+        }
+
+        try {
+            renewalTimer = executor.schedule(new Runnable() {
+                public void run() {
+                    renewDueMappings();
+                }
+            }, Math.max(0, earliest - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            renewalTimerDeadline = earliest;
+        } catch (RejectedExecutionException e) {
+
+            // We are shutting down
+            renewalTimer = null;
+        }
+    }
+
+    private void renewDueMappings() {
+        List<ForwardPort> due = new ArrayList<ForwardPort>();
+
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+
+            renewalTimer = null;
+
+            for (Map.Entry<ForwardPort, Long> entry : renewals.entrySet()) {
+                if (entry.getValue() <= now) {
+                    due.add(entry.getKey());
+                }
+            }
+
+            for (ForwardPort port : due) {
+                renewals.remove(port);
+            }
+
+            armRenewalTimer();
+        }
+
+        if ( !due.isEmpty()) {
+            Logger.minor(this, "Renewing the lease of " + due.size() + " port mapping(s)");
+
+            for (MappingTask task : register(due, Mode.RENEW)) {
+                submit(task, 0);
+            }
+        }
+    }
+
+    private void submit(MappingTask task, long delay) {
+        try {
+            executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+
+            // We are shutting down
+            tasks.remove(task.port, task);
+        }
+    }
+
+    private class MappingTask implements Runnable {
+        final ForwardPort port;
+        final String proto;
+        Mode mode;
+        int tries = 0;
+
+        MappingTask(ForwardPort port, String proto, Mode mode) {
+            this.port = port;
+            this.proto = proto;
+            this.mode = mode;
+        }
+
+        public void run() {
+            if (tasks.get(port) != this) {
+                return;
+            }
+
+            if ((tries == 0) && (mode != Mode.RENEW)) {
+                Logger.normal(this, "Registering a port mapping for " + port.portNumber + "/" +
+                              proto);
+                System.err.println("UPnP: Registering a port mapping for " + port.portNumber +
+                                   "/" + proto);
+            }
+
+            if (mode == Mode.CHECK) {
+                PortMappingEntry entry = gateway.getSpecificPortMapping(proto, port.portNumber);
+                String client = gateway.getInternalClient();
+
+                if (entry == PortMappingEntry.NONE) {
+                    mode = Mode.ADD;
+                } else if (entry == null) {
+                    mode = Mode.BLIND;
+                } else if ((client != null) && entry.isOwnedBy(client)) {
+                    if (tasks.remove(port, this)) {
+                        gateway.setForwarded(port, entry.leaseDuration);
+                        finish(true, entry.leaseDuration);
+                    }
+
+                    return;
+                } else {
+
+                    // Somebody else's: AddPortMapping will tell us about the conflict
+                    mode = Mode.ADD;
+                }
+            }
+
+            tries++;
+
+            Metrics metrics = upnp.getMetrics();
+
+            metrics.mappingAttempts.incrementAndGet();
+
+            if (tries > 1) {
+                metrics.mappingRetries.incrementAndGet();
+            }
+
+            int lease = gateway.getLeaseDuration();
+            boolean isPortForwarded = gateway.addMapping(proto, port.portNumber,
+                                          DESCRIPTION_PREFIX + port.name, port, lease,
+                                          mode == Mode.BLIND);
+
+            if (isPortForwarded) {
+                metrics.mappingSuccesses.incrementAndGet();
+
+                if (mode == Mode.RENEW) {
+                    metrics.mappingRenewals.incrementAndGet();
+                }
+
+                if ( !tasks.remove(port, this)) {
+
+                    // The port was dropped while we were talking to the router; if it has
+                    // been queued again instead, the newer task takes care of it.
+                    if ( !tasks.containsKey(port)) {
+                        gateway.removeMapping(proto, port.portNumber, port, true);
+                    }
+
+                    return;
+                }
+            } else if (tries < MAX_TRIES) {
+                if (tasks.get(port) == this) {
+                    submit(this, RETRY_DELAY);
+                }
+
+                return;
+            } else if ( !tasks.remove(port, this)) {
+                return;
+            } else {
+                metrics.mappingFailures.incrementAndGet();
+            }
+
+            // The IGD may have told us it only does permanent leases
+            finish(isPortForwarded, gateway.getLeaseDuration());
+        }
+
+        /**
+         * Reports the outcome and schedules the renewal. The task must have been unregistered.
+         *
+         * @param lease the lease the mapping has left, in seconds; 0 means permanent
+         */
+        void finish(boolean isPortForwarded, int lease) {
+            gateway.setPortTries(port, tries);
+
+            if (isPortForwarded) {
+                boolean isRenewed = (mode == Mode.RENEW) && isLeaseRunning(port);
+
+                if (lease > 0) {
+                    scheduleRenewal(port, lease);
+                } else {
+                    cancelRenewal(port);
+                }
+
+                if (isRenewed) {
+                    Logger.minor(this, "Renewed the mapping of " + port.portNumber + "/" + proto);
+
+                    return;
+                }
+            } else if (mode == Mode.RENEW) {
+                if (retryRenewal(port)) {
+                    Logger.normal(this,
+                                  "Couldn't renew the mapping of " + port.portNumber + "/" +
+                                  proto + ", trying again before its lease runs out");
+
+                    return;
+                }
+
+                if ( !gateway.setExpired(port)) {
+
+                    // Reported when the lease ran out; keep trying quietly
+                    Logger.minor(this,
+                                 "Still couldn't map " + port.portNumber + "/" + proto +
+                                 " again");
+
+                    return;
+                }
+            }
+
+            Logger.normal(this,
+                          (isPortForwarded ? "Mapping is successful!" : "Mapping has failed!") +
+                          " (" + tries + " tries)");
+            System.err.println("UPnP: " +
+                               (isPortForwarded ? "Mapping is successful!" : "Mapping has failed!") +
+                               " (" + tries + " tries)");
+
+            if (isPortForwarded) {
+                upnp.portForwardStatus(gateway, port,
+                                       new ForwardPortStatus(ForwardPortStatus.MAYBE_SUCCESS,
+                                           "Port apparently forwarded by UPnP", port.portNumber));
+            } else {
+                upnp.portForwardStatus(gateway, port,
+                                       new ForwardPortStatus(ForwardPortStatus.PROBABLE_FAILURE,
+                                           "UPnP port forwarding apparently failed",
+                                           port.portNumber));
+            }
+        }
+    }
+
+    /**
+     * Names the pool threads and makes sure they never keep the JVM alive.
+     */
+    static class DaemonThreadFactory implements ThreadFactory {
+        private final String name;
+        private int count = 0;
+
+        DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name + " " + (++count));
+
+            t.setDaemon(true);
+
+            return t;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+
+
+package plugins.UPnP;
+
+import plugins.UPnP.org.cybergarage.upnp.Argument;
+import plugins.UPnP.org.cybergarage.upnp.ArgumentList;
+
+/**
+ * A row of the port mapping table of an IGD, as returned by GetGenericPortMappingEntry or
+ * GetSpecificPortMappingEntry.
+ */
+final class PortMappingEntry {
+    /** Returned by lookups when the IGD told us there is no such mapping */
+    static final PortMappingEntry NONE = new PortMappingEntry("", -1, "", -1, "", false, "", 0);
+
+    final String remoteHost;
+    final int externalPort;
+    final String protocol;
+    final int internalPort;
+    final String internalClient;
+    final boolean isEnabled;
+    final String description;
+
+    /** Remaining lease, in seconds; 0 means permanent */
+    final int leaseDuration;
+
+    PortMappingEntry(String remoteHost, int externalPort, String protocol, int internalPort,
+                     String internalClient, boolean isEnabled, String description,
+                     int leaseDuration) {
+        this.remoteHost = remoteHost;
+        this.externalPort = externalPort;
+        this.protocol = protocol;
+        this.internalPort = internalPort;
+        this.internalClient = internalClient;
+        this.isEnabled = isEnabled;
+        this.description = description;
+        this.leaseDuration = leaseDuration;
+    }
+
+    /**
+     * Builds an entry out of the output arguments of a GetGenericPortMappingEntry or
+     * GetSpecificPortMappingEntry response. The latter doesn't echo the external port and
+     * protocol, so the caller passes them.
+     *
+     * @return the entry, or null if the response doesn't make sense
+     */
+    static PortMappingEntry parse(ArgumentList out, String protocol, int externalPort) {
+        try {
+            if (protocol == null) {
+                protocol = getValue(out, "NewProtocol").toUpperCase();
+                externalPort = Integer.parseInt(getValue(out, "NewExternalPort"));
+            }
+
+            String enabled = getValue(out, "NewEnabled");
+            String lease = getValue(out, "NewLeaseDuration");
+
+            return new PortMappingEntry(getValue(out, "NewRemoteHost"), externalPort, protocol,
+                                        Integer.parseInt(getValue(out, "NewInternalPort")),
+                                        getValue(out, "NewInternalClient"),
+                                        "1".equals(enabled) || "true".equalsIgnoreCase(enabled),
+                                        getValue(out, "NewPortMappingDescription"),
+                                        (lease.length() == 0) ? 0 : Integer.parseInt(lease));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String getValue(ArgumentList out, String name) {
+        Argument arg = out.getArgument(name);
+
+        if ((arg == null) || (arg.getValue() == null)) {
+            return "";
+        }
+
+        return arg.getValue().trim();
+    }
+
+    static String getKey(String protocol, int externalPort) {
+        return protocol + "/" + externalPort;
+    }
+
+    String getKey() {
+        return getKey(protocol, externalPort);
+    }
+
+    /**
+     * @return whether that mapping forwards the same port to the given host
+     */
+    boolean isOwnedBy(String client) {
+        return isEnabled && (externalPort == internalPort) && internalClient.equals(client);
+    }
+
+    public String toString() {
+        return getKey() + " -> " + internalClient + ":" + internalPort + " (" + description +
+               ", " + (isEnabled ? "enabled" : "disabled") + ", lease " + leaseDuration + ")";
+    }
+}
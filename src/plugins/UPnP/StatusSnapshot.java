@@ -0,0 +1,100 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+
+
+package plugins.UPnP;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import freenet.pluginmanager.ForwardPort;
+import freenet.pluginmanager.ForwardPortStatus;
+
+/**
+ * What the status page shows, collected in the background so that rendering the page never
+ * waits for an IGD. Immutable.
+ */
+final class StatusSnapshot {
+    static final StatusSnapshot EMPTY = new StatusSnapshot(0,
+                                            Collections.<GatewayStatus>emptyList(),
+                                            Collections.<ForwardPort>emptySet());
+
+    /** When it was collected, in milliseconds since the epoch; 0 if never */
+    final long timestamp;
+
+    /** In the order we found them */
+    final List<GatewayStatus> gateways;
+
+    /** The ports the node wants forwarded */
+    final Set<ForwardPort> portsToForward;
+
+    StatusSnapshot(long timestamp, List<GatewayStatus> gateways, Set<ForwardPort> portsToForward) {
+        this.timestamp = timestamp;
+        this.gateways = Collections.unmodifiableList(gateways);
+        this.portsToForward = Collections.unmodifiableSet(portsToForward);
+    }
+
+    /**
+     * What we know about one IGD.
+     */
+    static final class GatewayStatus {
+        final String udn;
+        final String friendlyName;
+
+        /** Whether it is the one we report from */
+        final boolean isPrimary;
+
+        /** Whether the ports are forwarded on it */
+        final boolean isActive;
+        final boolean isFromCache;
+
+        /** null if unknown */
+        final String externalIP;
+        final String connectionStatus;
+
+        /** In bits per second, -1 if unknown */
+        final int upstreamMaxBitRate;
+        final int downstreamMaxBitRate;
+        final Set<ForwardPort> portsForwarded;
+
+        /** The last status reported for each port */
+        final Map<ForwardPort, ForwardPortStatus> portStatus;
+
+        /** How many AddPortMapping requests each port took */
+        final Map<ForwardPort, Integer> portTries;
+
+        /** null if nothing went wrong */
+        final String lastError;
+        final long lastErrorTime;
+
+        /** How long collecting all that took, in milliseconds */
+        final long collectionTime;
+
+        GatewayStatus(String udn, String friendlyName, boolean isPrimary, boolean isActive,
+                      boolean isFromCache, String externalIP, String connectionStatus,
+                      int upstreamMaxBitRate, int downstreamMaxBitRate,
+                      Set<ForwardPort> portsForwarded,
+                      Map<ForwardPort, ForwardPortStatus> portStatus,
+                      Map<ForwardPort, Integer> portTries, String lastError,
+                      long lastErrorTime, long collectionTime) {
+            this.udn = udn;
+            this.friendlyName = friendlyName;
+            this.isPrimary = isPrimary;
+            this.isActive = isActive;
+            this.isFromCache = isFromCache;
+            this.externalIP = externalIP;
+            this.connectionStatus = connectionStatus;
+            this.upstreamMaxBitRate = upstreamMaxBitRate;
+            this.downstreamMaxBitRate = downstreamMaxBitRate;
+            this.portsForwarded = Collections.unmodifiableSet(portsForwarded);
+            this.portStatus = Collections.unmodifiableMap(portStatus);
+            this.portTries = Collections.unmodifiableMap(portTries);
+            this.lastError = lastError;
+            this.lastErrorTime = lastErrorTime;
+            this.collectionTime = collectionTime;
+        }
+    }
+}
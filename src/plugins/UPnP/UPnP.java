@@ -9,13 +9,32 @@ import static freenet.support.HTMLEncoder.encode;
 
 import static java.lang.String.format;
 
+import java.io.File;
+import java.io.IOException;
+
+import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import plugins.UPnP.org.cybergarage.upnp.Action;
 import plugins.UPnP.org.cybergarage.upnp.ActionList;
@@ -29,6 +48,12 @@ import plugins.UPnP.org.cybergarage.upnp.ServiceList;
 import plugins.UPnP.org.cybergarage.upnp.ServiceStateTable;
 import plugins.UPnP.org.cybergarage.upnp.StateVariable;
 import plugins.UPnP.org.cybergarage.upnp.device.DeviceChangeListener;
+import plugins.UPnP.org.cybergarage.upnp.device.DiscoveryFilter;
+import plugins.UPnP.org.cybergarage.upnp.device.NotifyListener;
+import plugins.UPnP.org.cybergarage.upnp.device.SearchResponseListener;
+import plugins.UPnP.org.cybergarage.upnp.device.USN;
+import plugins.UPnP.org.cybergarage.upnp.event.EventListener;
+import plugins.UPnP.org.cybergarage.upnp.ssdp.SSDPPacket;
 
 import freenet.clients.http.PageNode;
 
@@ -55,6 +80,11 @@ import freenet.support.transport.ip.IPUtil;
 /**
  * This plugin implements UPnP support on a Freenet node.
  *
+ * Every IGD answering on the LAN is tracked as a {@link Gateway}. One of them, the primary, is
+ * the one we report our address, bandwidth and port status from: preferably the one our default
+ * route goes through, then one which is connected and has a public address. The ports are
+ * forwarded on the primary only, unless {@link #setForwardOnAllGateways(boolean)} says otherwise.
+ *
  * @author Florent Daigni&egrave;re &lt;nextgens@freenetproject.org&gt;
  *
  *
@@ -63,68 +93,266 @@ import freenet.support.transport.ip.IPUtil;
  * @see http://www.upnp.org
  * @see http://en.wikipedia.org/wiki/Universal_Plug_and_Play
  *
- * TODO: Support multiple IGDs ?
  * TODO: Advertise the node like the MDNS plugin does
- * TODO: Implement EventListener and react on ip-change
  */
 public class UPnP extends ControlPoint
         implements FredPluginHTTP, FredPlugin, FredPluginThreadless, FredPluginIPDetector,
                    FredPluginPortForward, FredPluginBandwidthIndicator, FredPluginVersioned,
-                   FredPluginRealVersioned, DeviceChangeListener {
+                   FredPluginRealVersioned, DeviceChangeListener, EventListener,
+                   NotifyListener, SearchResponseListener, DiscoveryFilter {
     private PluginRespirator pr;
 
-    /** some schemas */
-    private static final String ROUTER_DEVICE =
-        "urn:schemas-upnp-org:device:InternetGatewayDevice:1";
-    private static final String WAN_DEVICE = "urn:schemas-upnp-org:device:WANDevice:1";
-    private static final String WANCON_DEVICE = "urn:schemas-upnp-org:device:WANConnectionDevice:1";
-    private static final String WAN_IP_CONNECTION =
-        "urn:schemas-upnp-org:service:WANIPConnection:1";
-    private static final String WAN_PPP_CONNECTION =
-        "urn:schemas-upnp-org:service:WANPPPConnection:1";
-    private Device _router;
-    private Service _service;
-
-    // We disable the plugin if more than one IGD is found
-    private boolean isDisabled = false;
+    /** How long we trust what the IGD told us, in milliseconds; GENA events refresh them early */
+    static final long DEFAULT_EXTERNAL_IP_TTL = 2 * 60 * 1000;
+    static final long DEFAULT_CONNECTION_STATUS_TTL = 60 * 1000;
+    static final long DEFAULT_LINK_BIT_RATES_TTL = 10 * 60 * 1000;
+
+    /** Lease we ask for our mappings, in seconds; PortMapper renews them before they expire */
+    static final int DEFAULT_LEASE_DURATION = 60 * 60;
+
+    /** Maximum number of SOAP requests we have in flight against the IGDs */
+    static final int MAX_PARALLEL_REQUESTS = 4;
+
+    /**
+     * How many SCPDs of a new IGD are downloaded at once, before we hear about it; an IGD
+     * typically has three or four services
+     */
+    static final int SCPD_PREFETCH_PARALLELISM = 4;
+
+    /**
+     * How long unloading may take, in milliseconds: the requests the IGDs haven't answered by
+     * then are abandoned
+     */
+    static final long SHUTDOWN_TIMEOUT = 10 * 1000;
+
+    /** Idle pool threads are released after that many seconds */
+    private static final long KEEP_ALIVE = 60;
+
+    /**
+     * Delay before the first periodic M-SEARCH, in milliseconds. It doubles after each search
+     * which found nothing, up to MAX_SEARCH_INTERVAL.
+     */
+    static final long MIN_SEARCH_INTERVAL = 5 * 1000;
+
+    /** Delay between two M-SEARCHes once we have an IGD, in milliseconds */
+    static final long MAX_SEARCH_INTERVAL = 10 * 60 * 1000;
+
+    /** How long we wait for the IGDs to tell us their status when choosing one, in milliseconds */
+    static final long PROBE_TIMEOUT = 10 * 1000;
+
+    /** How many IGDs we ask about their status at once when choosing one */
+    static final int MAX_PARALLEL_PROBES = 4;
+
+    /** Where we remember the IGD we used last, relative to the node's directory */
+    static final String DEFAULT_GATEWAY_CACHE_FILE = "upnp-gateway.properties";
+
+    /** Where we record the mappings we make, relative to the node's directory */
+    static final String DEFAULT_MAPPING_JOURNAL_FILE = "upnp-mappings.journal";
+
+    /**
+     * A mapping a previous run made is only taken over if it has at least that much lease
+     * left, in milliseconds; otherwise it is added again
+     */
+    static final long MIN_ADOPTED_LEASE = 60 * 1000;
+
+    /** How often the status page snapshot is collected again anyway, in milliseconds */
+    static final long STATUS_REFRESH_INTERVAL = 60 * 1000;
+
+    /** How long the browser waits before asking for the capabilities report again, in seconds */
+    private static final int REPORT_RELOAD_DELAY = 5;
+
+    /**
+     * We connect a datagram socket to that address to learn which interface our default route
+     * goes through; it's TEST-NET-2, and connecting doesn't send anything anyway.
+     */
+    private static final byte[] ROUTE_PROBE_ADDRESS = { (byte) 198, (byte) 51, (byte) 100, 1 };
+
+    /** Every IGD we know about, by UDN, in the order we found them */
+    private final Map<String, Gateway> gateways = new LinkedHashMap<String, Gateway>();
+
+    /** The IGD we report from; null until one has been chosen */
+    private Gateway primary;
     private final Object lock = new Object();
 
+    /** Serializes the choice of the primary IGD */
+    private final Object selectionLock = new Object();
+    private boolean isSelectionPending = false;
+
+    /** What the status page shows; see collectStatus() */
+    private volatile StatusSnapshot status = StatusSnapshot.EMPTY;
+    private boolean isStatusRefreshPending = false;
+
+    /** The device tree of all the IGDs, as HTML; null until generated. Protected by lock. */
+    private String capabilitiesReport;
+    private boolean isCapabilitiesReportPending = false;
+
+    /** Bumped whenever the set of IGDs changes, so that a stale report doesn't get cached */
+    private long capabilitiesReportGeneration = 0;
+
+    /** The next periodic M-SEARCH, and the delay of the one after. Protected by lock. */
+    private ScheduledFuture<?> searchTimer;
+    private long searchInterval = MIN_SEARCH_INTERVAL;
+
     // FIXME: detect it for real and deal with it! @see #2524
     private volatile boolean thinksWeAreDoubleNatted = false;
 
     /** List of ports we want to forward */
     private Set<ForwardPort> portsToForward;
 
-    /** List of ports we have actually forwarded */
-    private Set<ForwardPort> portsForwarded;
-
     /** Callback to call when a forward fails or succeeds */
     private ForwardPortCallback forwardCallback;
 
+    /** What the machine-readable status pages show */
+    private final Metrics metrics = new Metrics();
+
+    /** Runs the SOAP requests of all the gateways in the background */
+    private final ScheduledThreadPoolExecutor executor;
+
+    /**
+     * Runs the status requests of pickGateway(), which waits for them from a thread of the
+     * executor: sharing its threads could starve them
+     */
+    private final ThreadPoolExecutor probeExecutor;
+
+    private volatile int leaseDuration = DEFAULT_LEASE_DURATION;
+
+    /** Whether we look at the router's table before adding mappings */
+    private volatile boolean reconcileMappings = true;
+
+    /** Whether the ports are forwarded on every IGD rather than on the primary one only */
+    private volatile boolean forwardOnAllGateways = false;
+
+    /** null if we don't remember the IGD between runs */
+    private volatile GatewayCache gatewayCache =
+        new GatewayCache(new File(DEFAULT_GATEWAY_CACHE_FILE));
+
+    /** null if we don't keep track of our mappings between runs */
+    private volatile MappingJournal mappingJournal =
+        new MappingJournal(new File(DEFAULT_MAPPING_JOURNAL_FILE));
+
+    /** What new gateways get: see setCacheTTLs() */
+    private volatile long externalIPTTL = DEFAULT_EXTERNAL_IP_TTL;
+    private volatile long connectionStatusTTL = DEFAULT_CONNECTION_STATUS_TTL;
+    private volatile long linkBitRatesTTL = DEFAULT_LINK_BIT_RATES_TTL;
+
     public UPnP() {
         super();
-        portsForwarded = new HashSet<ForwardPort>();
-        addDeviceChangeListener(this);
+        executor = new ScheduledThreadPoolExecutor(MAX_PARALLEL_REQUESTS,
+                new PortMapper.DaemonThreadFactory("UPnP"));
+        executor.setKeepAliveTime(KEEP_ALIVE, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        probeExecutor = new ThreadPoolExecutor(MAX_PARALLEL_PROBES, MAX_PARALLEL_PROBES,
+                KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new PortMapper.DaemonThreadFactory("UPnP probe"));
+        probeExecutor.allowCoreThreadTimeOut(true);
+
+        // Subscribing to a new IGD takes a while: don't hold up the SSDP and HTTP threads
+        addDeviceChangeListener(this, true);
+        addEventListener(this, true);
+        addNotifyListener(this, true);
+        addSearchResponseListener(this, true);
+        setDiscoveryFilter(this);
+        setSCPDPrefetchParallelism(SCPD_PREFETCH_PARALLELISM);
     }
 
     public void runPlugin(PluginRespirator pr) {
         this.pr = pr;
-        super.start();
+
+        MappingJournal journal = mappingJournal;
+
+        if (journal != null) {
+            journal.load();
+        }
+
+        // Only IGDs answer, and they tell us what they are
+        super.start(Gateway.ROUTER_DEVICE);
+        restartSearches();
+
+        try {
+            executor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    collectStatus();
+                }
+            }, STATUS_REFRESH_INTERVAL, STATUS_REFRESH_INTERVAL, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+
+            // We are shutting down
+        }
+
+        execute(new Runnable() {
+            public void run() {
+                restoreCachedGateway();
+            }
+        });
     }
 
     public void terminate() {
-        unregisterPortMappings();
-        super.stop();
+        for (Gateway gateway : getGateways()) {
+            gateway.getPortMapper().shutdown();
+        }
+
+        executor.shutdownNow();
+        probeExecutor.shutdownNow();
+
+        // Deletes our mappings while unsubscribing, see addStopTasks()
+        List<String> unfinished = stop(SHUTDOWN_TIMEOUT);
+
+        if ( !unfinished.isEmpty()) {
+            Logger.normal(this, "Gave up on " + unfinished.size() + " request(s) while unloading: " +
+                          unfinished);
+            System.err.println("UPnP: Gave up on " + unfinished.size() +
+                               " request(s) to the IGDs while unloading");
+        }
+    }
+
+    /**
+     * Deletes the mappings we have made on all the IGDs, in parallel with the UNSUBSCRIBEs of
+     * ControlPoint.stop().
+     */
+    protected void addStopTasks(Map<String, Runnable> tasks) {
+        for (final Gateway gateway : getGateways()) {
+
+            // ControlPoint.stop() only unsubscribes from the devices it knows about
+            if (gateway.isFromCache() && gateway.getService().isSubscribed()) {
+                tasks.put("UNSUBSCRIBE " + gateway, new Runnable() {
+                    public void run() {
+                        unsubscribe(gateway.getService());
+                    }
+                });
+            }
+
+            for (final ForwardPort port : gateway.getPortsForwarded()) {
+                final String proto = getProtocol(port);
+
+                if (proto == null) {
+                    continue;
+                }
+
+                String name = "DeletePortMapping " + port.portNumber + "/" + proto + " on " +
+                              gateway;
+
+                tasks.put(name, new Runnable() {
+                    public void run() {
+                        gateway.removeMapping(proto, port.portNumber, port, false);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * @return the pool the SOAP requests of all the gateways run on
+     */
+    ScheduledThreadPoolExecutor getExecutor() {
+        return executor;
     }
 
     public DetectedIP[] getAddress() {
         Logger.minor(this, "UPnP.getAddress() is called \\o/");
 
-        if (isDisabled) {
-            Logger.normal(this, "Plugin has been disabled previously, ignoring request.");
+        Gateway gateway = getPrimaryGateway();
 
-            return null;
-        } else if ( !isNATPresent()) {
+        if (gateway == null) {
             Logger.normal(this,
                           "No UPnP device found, detection of the external ip address" +
                           " using the plugin has failed");
@@ -133,7 +361,7 @@ public class UPnP extends ControlPoint
         }
 
         DetectedIP result = null;
-        final String natAddress = getNATAddress();
+        final String natAddress = gateway.getNATAddress();
 
         try {
             InetAddress detectedIP = InetAddress.getByName(natAddress);
@@ -142,7 +370,7 @@ public class UPnP extends ControlPoint
             thinksWeAreDoubleNatted = !IPUtil.isValidAddress(detectedIP, false);
 
             // If we have forwarded a port AND we don't have a private address
-            if ((portsForwarded.size() > 1) && ( !thinksWeAreDoubleNatted)) {
+            if ((gateway.getPortsForwarded().size() > 1) && ( !thinksWeAreDoubleNatted)) {
                 status = DetectedIP.FULL_INTERNET;
             }
 
@@ -160,398 +388,782 @@ public class UPnP extends ControlPoint
     }
 
     public void deviceAdded(Device dev) {
+        if ( !Gateway.ROUTER_DEVICE.equals(dev.getDeviceType()) || !dev.isRootDevice()) {
+            return;  // Silently ignore non-IGD devices
+        }
+
         synchronized (lock) {
-            if (isDisabled) {
-                Logger.normal(this, "Plugin has been disabled previously, ignoring new device.");
+            Gateway known = gateways.get(dev.getUDN());
 
+            // The one we got from the cache gets replaced with the real thing
+            if ((known != null) && !known.isFromCache()) {
                 return;
             }
         }
 
-        if ( !ROUTER_DEVICE.equals(dev.getDeviceType()) || !dev.isRootDevice()) {
-            return;  // Silently ignore non-IGD devices
-        } else if (isNATPresent()) {
+        Logger.normal(this, "UPnP IGD found: " + dev.getFriendlyName());
+        System.out.println("UPnP IGD found: " + dev.getFriendlyName());
+
+        Service service = Gateway.findService(dev);
+
+        if (service == null) {
             Logger.error(this,
-                         "We got a second IGD on the network! the plugin doesn't handle" +
-                         " that: let's disable it.");
-            System.err.println("The UPnP plugin has found more than one IGD on the network," +
-                               " as a result it will be disabled");
-            isDisabled = true;
+                         "The IGD device " + dev.getFriendlyName() +
+                         " isn't suiting our needs, ignoring it");
+            System.err.println("The IGD device " + dev.getFriendlyName() +
+                               " isn't suiting our needs, ignoring it");
 
-            synchronized (lock) {
-                _router = null;
-                _service = null;
-            }
+            return;
+        }
+
+        addGateway(new Gateway(this, dev, service, false));
+    }
 
-            stop();
+    /**
+     * Starts using the IGD we used last time, if it still answers, without waiting for SSDP.
+     * The ControlPoint doesn't know about it, so it is dropped as soon as a status poll fails,
+     * see collectStatus(). Blocking.
+     */
+    private void restoreCachedGateway() {
+        GatewayCache cache = gatewayCache;
 
+        if (cache == null) {
             return;
         }
 
-        Logger.normal(this, "UPnP IGD found: " + dev.getFriendlyName());
-        System.out.println("UPnP IGD found: " + dev.getFriendlyName());
+        Device dev = cache.load();
+
+        if (dev == null) {
+            return;
+        }
 
         synchronized (lock) {
-            _router = dev;
+            if (gateways.containsKey(dev.getUDN())) {
+                return;  // SSDP was quicker
+            }
         }
 
-        discoverService();
+        Gateway gateway = new Gateway(this, dev, Gateway.findService(dev), true);
 
-        // We have found the device we need: stop the listener thread
-        stop();
+        gateway.setCacheTTLs(externalIPTTL, connectionStatusTTL, linkBitRatesTTL);
+
+        // A single unicast request tells us whether it is still there
+        if (gateway.getNATAddress() == null) {
+            Logger.normal(this,
+                          "The UPnP IGD we used last time (" + gateway +
+                          ") doesn't answer, waiting for SSDP");
+            cache.delete();
+
+            return;
+        }
+
+        Logger.normal(this, "Using the UPnP IGD we used last time: " + gateway);
+        System.out.println("Using the UPnP IGD we used last time: " + gateway.getFriendlyName());
+        addGateway(gateway);
+    }
+
+    private void addGateway(final Gateway gateway) {
+        Gateway replaced;
+
+        gateway.setCacheTTLs(externalIPTTL, connectionStatusTTL, linkBitRatesTTL);
 
         synchronized (lock) {
-            if (_service == null) {
-                Logger.error(
-                    this,
-                    "The IGD device we got isn't suiting our needs, let's disable the plugin");
-                System.err.println(
-                    "The IGD device we got isn't suiting our needs, let's disable the plugin");
-                isDisabled = true;
-                _router = null;
+            replaced = gateways.get(gateway.getUDN());
 
+            if ((replaced != null) && (gateway.isFromCache() || !replaced.isFromCache())) {
                 return;
             }
+
+            gateways.put(gateway.getUDN(), gateway);
         }
 
-        registerPortMappings();
-    }
+        metrics.recordDiscovery();
 
-    private void registerPortMappings() {
-        Set ports = new HashSet<ForwardPort>();
+        if (replaced != null) {
+            replaced.getPortMapper().shutdown();
+        }
 
-        synchronized (lock) {
-            if (portsToForward != null) {
-                ports.addAll(portsToForward);
+        invalidateCapabilitiesReport();
+
+        final Gateway old = replaced;
+
+        execute(new Runnable() {
+            public void run() {
+                if (old != null) {
+                    unsubscribe(old.getService());
+                }
+
+                gatewayAdded(gateway);
             }
+        });
+    }
+
+    private void gatewayAdded(Gateway gateway) {
+        if ( !subscribe(gateway.getService())) {
+            Logger.normal(this,
+                          "Couldn't subscribe to the events of " + gateway.getFriendlyName() +
+                          "; we will poll it instead.");
         }
 
-        if (ports.isEmpty()) {
-            return;
+        requestGatewaySelection();
+
+        // Otherwise the primary one gets them when it is chosen
+        if (forwardOnAllGateways && isGatewayPresent(gateway)) {
+            registerPortMappings(gateway);
         }
 
-        registerPorts(ports);
+        requestStatusRefresh();
     }
 
     /**
-     * Traverses the structure of the router device looking for the port mapping service.
+     * Starts the periodic M-SEARCHes over from the shortest interval, e.g. because we just lost
+     * an IGD. The SSDP listeners stay up all along, so that we also hear the IGDs announcing
+     * themselves.
      */
-    private void discoverService() {
+    private void restartSearches() {
         synchronized (lock) {
-            for (Iterator iter = _router.getDeviceList().iterator(); iter.hasNext(); ) {
-                Device current = (Device) iter.next();
-
-                if ( !current.getDeviceType().equals(WAN_DEVICE)) {
-                    continue;
-                }
+            searchInterval = MIN_SEARCH_INTERVAL;
+        }
 
-                DeviceList l = current.getDeviceList();
+        scheduleSearch(MIN_SEARCH_INTERVAL);
+    }
 
-                for (int i = 0; i < current.getDeviceList().size(); i++) {
-                    Device current2 = l.getDevice(i);
+    private void scheduleSearch(long delay) {
+        synchronized (lock) {
+            if (searchTimer != null) {
+                searchTimer.cancel(false);
+            }
 
-                    if ( !current2.getDeviceType().equals(WANCON_DEVICE)) {
-                        continue;
+            try {
+                searchTimer = executor.schedule(new Runnable() {
+                    public void run() {
+                        periodicSearch();
                     }
+                }, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
 
-                    _service = current2.getService(WAN_PPP_CONNECTION);
-
-                    if (_service == null) {
-                        Logger.normal(
-                            this,
-                            _router.getFriendlyName() +
-                            " doesn't seems to be using PPP; we won't be able to extract" +
-                            " bandwidth-related informations out of it.");
-                        _service = current2.getService(WAN_IP_CONNECTION);
-
-                        if (_service == null) {
-                            Logger.error(this,
-                                         _router.getFriendlyName() +
-                                         " doesn't export WAN_IP_CONNECTION either: we won't" +
-                                         " be able to use it!");
-                        }
-                    }
+                // We are shutting down
+                searchTimer = null;
+            }
+        }
+    }
 
-                    return;
-                }
+    /**
+     * Sends an M-SEARCH, then schedules the next one: backing off exponentially while there is
+     * no IGD around, slowly otherwise.
+     */
+    private void periodicSearch() {
+        long delay;
+
+        synchronized (lock) {
+            if (gateways.isEmpty()) {
+                delay = searchInterval = Math.min(searchInterval * 2, MAX_SEARCH_INTERVAL);
+            } else {
+                delay = MAX_SEARCH_INTERVAL;
             }
         }
+
+        Logger.minor(this, "Searching for UPnP devices; next search in " + delay + "ms");
+        search(Gateway.ROUTER_DEVICE);
+        scheduleSearch(delay);
     }
 
-    public boolean tryAddMapping(String protocol, int port, String description, ForwardPort fp) {
-        Logger.normal(this, "Registering a port mapping for " + port + "/" + protocol);
-        System.err.println("UPnP: Registering a port mapping for " + port + "/" + protocol);
+    /**
+     * Only IGDs are worth downloading the description of. They announce themselves with their
+     * device type as NT (or ST, when answering our M-SEARCH); the announcements of their root
+     * device don't tell what they are, so they are ignored.
+     */
+    public boolean isWantedDevice(SSDPPacket packet) {
+        return Gateway.ROUTER_DEVICE.equals(packet.getNT()) ||
+               Gateway.ROUTER_DEVICE.equals(packet.getST()) ||
+               packet.getUSN().endsWith("::" + Gateway.ROUTER_DEVICE);
+    }
 
-        int nbOfTries = 0;
-        boolean isPortForwarded = false;
+    public void deviceNotifyReceived(SSDPPacket packet) {
+        if (packet.isAlive()) {
+            checkBootId(packet);
+        }
+    }
 
-        while (nbOfTries++ < 5) {
-            isPortForwarded = addMapping(protocol, port, "Freenet 0.7 " + description, fp);
+    public void deviceSearchResponseReceived(SSDPPacket packet) {
+        checkBootId(packet);
+    }
 
-            if (isPortForwarded) {
-                break;
-            }
+    /**
+     * Looks at an announcement of a root device we already know: if it is one of our IGDs and
+     * it has restarted since, it has forgotten about our mappings and our subscription.
+     */
+    private void checkBootId(SSDPPacket packet) {
+        if ( !packet.isRootDevice() && !isWantedDevice(packet)) {
+            return;
+        }
 
-            try {
-                Thread.sleep(5000);
-            } catch (InterruptedException e) {}
+        final Gateway gateway;
+
+        synchronized (lock) {
+            gateway = gateways.get(USN.getUDN(packet.getUSN()));
         }
 
-        Logger.normal(this,
-                      (isPortForwarded ? "Mapping is successful!" : "Mapping has failed!") + " (" +
-                      nbOfTries + " tries)");
-        System.err.println("UPnP: " +
-                           (isPortForwarded ? "Mapping is successful!" : "Mapping has failed!") +
-                           " (" + nbOfTries + " tries)");
+        if ((gateway == null) || !gateway.updateBootId(packet.getBootId())) {
+            return;
+        }
 
-        return isPortForwarded;
+        Logger.normal(this, gateway + " has restarted, forwarding the ports again");
+        System.err.println("UPnP: " + gateway.getFriendlyName() +
+                           " has restarted, forwarding the ports again");
+        execute(new Runnable() {
+            public void run() {
+                gatewayRestarted(gateway);
+            }
+        });
     }
 
-    public void unregisterPortMappings() {
-        Set<ForwardPort> ports = new HashSet<ForwardPort>();
+    private void gatewayRestarted(Gateway gateway) {
+        gateway.invalidateCache();
+        gateway.clearForwarded();
+        gateway.getService().clearSID();
 
-        synchronized (lock) {
-            ports.addAll(portsForwarded);
+        if ( !subscribe(gateway.getService())) {
+            Logger.normal(this,
+                          "Couldn't subscribe to the events of " + gateway.getFriendlyName() +
+                          "; we will poll it instead.");
         }
 
-        this.unregisterPorts(ports);
+        if (isGatewayPresent(gateway) && getActiveGateways().contains(gateway)) {
+            registerPortMappings(gateway);
+        }
+
+        requestStatusRefresh();
     }
 
-    public void deviceRemoved(Device dev) {
+    private void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+
+            // We are shutting down
+        }
+    }
+
+    /**
+     * Asks for the primary IGD to be chosen again in the background. Requests made while one
+     * is already queued are merged into it.
+     */
+    private void requestGatewaySelection() {
         synchronized (lock) {
-            if (_router == null) {
+            if (isSelectionPending) {
                 return;
             }
 
-            if (_router.equals(dev)) {
-                _router = null;
-                _service = null;
-            }
+            isSelectionPending = true;
         }
+
+        execute(new Runnable() {
+            public void run() {
+                synchronized (lock) {
+                    isSelectionPending = false;
+                }
+
+                selectPrimaryGateway();
+            }
+        });
     }
 
     /**
-     * @return whether we are behind an UPnP-enabled NAT/router
+     * Chooses the IGD we report from, and moves the port mappings over if it changed. Blocking.
      */
-    public boolean isNATPresent() {
-        return (_router != null) && (_service != null);
+    private void selectPrimaryGateway() {
+        synchronized (selectionLock) {
+            List<Gateway> candidates = getGateways();
+            Gateway best = candidates.isEmpty() ? null : pickGateway(candidates);
+            Gateway old;
+
+            synchronized (lock) {
+                if ((best != null) && !gateways.containsValue(best)) {
+
+                    // It went away while we were probing; we will be called again
+                    best = null;
+                }
+
+                old = primary;
+                primary = best;
+            }
+
+            if (best == old) {
+                return;
+            }
+
+            if (best == null) {
+                Logger.normal(this, "No usable UPnP IGD left");
+                System.err.println("No usable UPnP IGD left");
+            } else {
+                Logger.normal(this, "Using " + best + " as our main UPnP IGD");
+                System.out.println("Using " + best.getFriendlyName() + " as our main UPnP IGD");
+            }
+
+            if ((old != null) && !forwardOnAllGateways && isGatewayPresent(old)) {
+                old.getPortMapper().shutdown();
+                unregisterPorts(old, old.getPortsForwarded());
+            }
+
+            requestStatusRefresh();
+
+            if (best != null) {
+
+                // Otherwise it got them when we found it
+                if ( !forwardOnAllGateways) {
+                    registerPortMappings(best);
+                }
+
+                GatewayCache cache = gatewayCache;
+
+                if ((cache != null) && !best.isFromCache()) {
+                    cache.save(best);
+                }
+            }
+        }
     }
 
     /**
-     * @return the external address the NAT thinks we have.  Blocking.
-     * null if we can't find it.
+     * Asks all the candidates about their connection at once, then picks the best one: the one
+     * our default route goes through, then a connected one, then one with a public address.
+     * Ties go to the first one we found.
      */
-    public String getNATAddress() {
-        if ( !isNATPresent()) {
-            return null;
+    private Gateway pickGateway(List<Gateway> candidates) {
+        if (candidates.size() == 1) {
+            return candidates.get(0);
         }
 
-        Action getIP = _service.getAction("GetExternalIPAddress");
+        final InetAddress routeAddress = getDefaultRouteAddress();
+        List<Callable<Integer>> probes = new ArrayList<Callable<Integer>>();
 
-        if ((getIP == null) || !getIP.postControlAction()) {
-            return null;
+        for (final Gateway gateway : candidates) {
+            probes.add(new Callable<Integer>() {
+                public Integer call() {
+                    return getScore(gateway, routeAddress);
+                }
+            });
         }
 
-        return (getIP.getOutputArgumentList().getArgument("NewExternalIPAddress")).getValue();
-    }
+        List<Future<Integer>> scores;
 
-    /**
-     * @return the reported upstream bit rate in bits per second. -1 if it's not available.
-     *     Blocking.
-     */
-    public int getUpstramMaxBitRate() {
-        if ( !isNATPresent() || thinksWeAreDoubleNatted) {
-            return -1;
+        try {
+            scores = probeExecutor.invokeAll(probes, PROBE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            return candidates.get(0);
+        } catch (RejectedExecutionException e) {
+            return candidates.get(0);
         }
 
-        Action getIP = _service.getAction("GetLinkLayerMaxBitRates");
+        Gateway best = null;
+        int bestScore = -1;
+
+        for (int i = 0; i < candidates.size(); i++) {
+            int score = 0;
 
-        if ((getIP != null) && !getIP.postControlAction()) {
             try {
-                return Integer.valueOf(
-                    getIP.getOutputArgumentList().getArgument("NewUpstreamMaxBitRate").getValue());
-            } catch (NumberFormatException e) {
+                score = scores.get(i).get();
+            } catch (CancellationException e) {
+
+                // Didn't answer in time
+            } catch (ExecutionException e) {
+                Logger.error(this, "Probing " + candidates.get(i) + " failed", e);
+            } catch (InterruptedException e) {
 
-                // ignore
+                // Can't happen: invokeAll() has waited for all of them
             }
+
+            Logger.minor(this, candidates.get(i) + " scores " + score);
+
+            if (score > bestScore) {
+                best = candidates.get(i);
+                bestScore = score;
+            }
+        }
+
+        return best;
+    }
+
+    private int getScore(Gateway gateway, InetAddress routeAddress) {
+        int score = 0;
+
+        if ((routeAddress != null) &&
+                routeAddress.getHostAddress().equals(gateway.getInternalClient())) {
+            score += 4;
+        }
+
+        if ("Connected".equals(gateway.getConnectionStatus())) {
+            score += 2;
         }
 
-        getIP = _service.getAction("GetCommonLinkProperties");
+        String natAddress = gateway.getNATAddress();
 
-        if ((getIP != null) && !getIP.postControlAction()) {
+        if ((natAddress != null) && (natAddress.length() > 0)) {
             try {
-                return Integer.valueOf(
-                    getIP.getOutputArgumentList().getArgument(
-                        "NewLayer1UpstreamMaxBitRate").getValue());
-            } catch (NumberFormatException e) {
+                if (IPUtil.isValidAddress(InetAddress.getByName(natAddress), false)) {
+                    score += 1;
+                }
+            } catch (UnknownHostException e) {
 
-                // ignore
+                // Not an address
             }
         }
 
-        // Recurse
-        return getUpstreamMaxBitRate(_router);
+        return score;
     }
 
     /**
-     * @return the reported downstream bit rate in bits per second. -1 if it's not available.
-     *     Blocking.
+     * @return the local address of the interface our default route goes through, or null if we
+     *     can't tell
      */
-    public int getDownstreamMaxBitRate() {
-        if ( !isNATPresent() || thinksWeAreDoubleNatted) {
-            return -1;
+    private static InetAddress getDefaultRouteAddress() {
+        DatagramSocket socket = null;
+
+        try {
+            socket = new DatagramSocket();
+            socket.connect(InetAddress.getByAddress(ROUTE_PROBE_ADDRESS), 9);
+
+            InetAddress address = socket.getLocalAddress();
+
+            return ((address == null) || address.isAnyLocalAddress()) ? null : address;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (socket != null) {
+                socket.close();
+            }
         }
+    }
 
-        Action getIP = _service.getAction("GetLinkLayerMaxBitRates");
+    private void registerPortMappings(Gateway gateway) {
+        Set<ForwardPort> ports = new HashSet<ForwardPort>();
 
-        if ((getIP != null) && !getIP.postControlAction()) {
-            try {
-                return Integer.valueOf(
-                    getIP.getOutputArgumentList().getArgument(
-                        "NewDownstreamMaxBitRate").getValue());
-            } catch (NumberFormatException e) {
+        synchronized (lock) {
+            if (portsToForward == null) {
+                return;  // The node hasn't told us what it wants yet
+            }
+
+            ports.addAll(portsToForward);
+        }
+
+        ports = replayJournal(gateway, ports);
 
-                // ignore
+        if (ports.isEmpty()) {
+            return;
+        }
+
+        if (reconcileMappings) {
+            gateway.getPortMapper().reconcile(ports);
+        } else {
+            gateway.getPortMapper().forward(ports);
+        }
+    }
+
+    /**
+     * Deals with what a previous run, which didn't get to clean up, left on that gateway: the
+     * mappings nobody wants anymore are deleted in one go, and those which are still valid are
+     * taken over as they are. Only does anything the first time it is called for a gateway.
+     *
+     * @return the ports which still need forwarding
+     */
+    private Set<ForwardPort> replayJournal(final Gateway gateway, Set<ForwardPort> ports) {
+        MappingJournal journal = mappingJournal;
+
+        if (journal == null) {
+            return ports;
+        }
+
+        Map<String, Long> recovered = journal.takeRecovered(gateway.getUDN());
+
+        if (recovered.isEmpty()) {
+            return ports;
+        }
+
+        Set<ForwardPort> remaining = new HashSet<ForwardPort>();
+        long now = System.currentTimeMillis();
+        int adopted = 0;
+
+        for (ForwardPort port : ports) {
+            String proto = getProtocol(port);
+            Long expiry = (proto == null)
+                          ? null : recovered.remove(PortMappingEntry.getKey(proto,
+                              port.portNumber));
+
+            if ((expiry != null) && (expiry == 0)) {
+                gateway.getPortMapper().adopt(port, 0);
+                adopted++;
+            } else if ((expiry != null) && (expiry - now > MIN_ADOPTED_LEASE)) {
+                gateway.getPortMapper().adopt(port, (int) ((expiry - now) / 1000));
+                adopted++;
+            } else {
+                remaining.add(port);
             }
         }
 
-        getIP = _service.getAction("GetCommonLinkProperties");
+        final List<String> orphans = new ArrayList<String>();
 
-        if ((getIP != null) && !getIP.postControlAction()) {
-            try {
-                return Integer.valueOf(
-                    getIP.getOutputArgumentList().getArgument(
-                        "NewLayer1DownstreamMaxBitRate").getValue());
-            } catch (NumberFormatException e) {
+        for (Map.Entry<String, Long> entry : recovered.entrySet()) {
+            String[] key = entry.getKey().split("/");
+            long expiry = entry.getValue();
 
-                // ignore
+            // Those which have expired are gone already
+            if (((expiry == 0) || (expiry > now)) &&
+                    !isForwardWanted(key[0], Integer.parseInt(key[1]))) {
+                orphans.add(entry.getKey());
             }
         }
 
-        // Recurse
-        return getDownstreamMaxBitRate(_router);
+        Logger.normal(this,
+                      "The previous run left " + (adopted + orphans.size()) +
+                      " port mapping(s) on " + gateway + ": taking " + adopted +
+                      " over, deleting " + orphans.size());
+
+        if ( !orphans.isEmpty()) {
+            execute(new Runnable() {
+                public void run() {
+                    for (String orphan : orphans) {
+                        String[] key = orphan.split("/");
+
+                        gateway.removeMapping(key[0], Integer.parseInt(key[1]), null, true);
+                    }
+                }
+            });
+        }
+
+        return remaining;
     }
 
-    private int getDownstreamMaxBitRate(Device dev) {
-        ServiceList sl = dev.getServiceList();
+    public void deviceRemoved(Device dev) {
+        removeGateway(dev.getUDN(), null);
+    }
 
-        for (int i = 0; i < sl.size(); i++) {
-            Service serv = sl.getService(i);
+    /**
+     * Stops using an IGD which has gone away.
+     *
+     * @param expected only remove the IGD of that UDN if it is that one; null for any
+     */
+    private void removeGateway(String udn, Gateway expected) {
+        Gateway gateway;
+        boolean wasPrimary;
 
-            if (serv == null) {
+        synchronized (lock) {
+            gateway = gateways.get(udn);
+
+            if ((gateway == null) || ((expected != null) && (gateway != expected))) {
+                return;
+            }
+
+            gateways.remove(udn);
+
+            wasPrimary = (gateway == primary);
+
+            if (wasPrimary) {
+                primary = null;
+            }
+        }
+
+        Logger.normal(this, "UPnP IGD gone: " + gateway);
+        gateway.getPortMapper().shutdown();
+        invalidateCapabilitiesReport();
+        requestStatusRefresh();
+
+        // It may well come back soon, e.g. if it is rebooting: don't wait too long to look
+        restartSearches();
+
+        if (wasPrimary) {
+            requestGatewaySelection();
+        }
+    }
+
+    public void eventNotifyReceived(String uuid, long seq, String varName, String value) {
+        if (uuid == null) {
+            return;
+        }
+
+        for (Gateway gateway : getGateways()) {
+            if ( !uuid.equals(gateway.getService().getSID())) {
                 continue;
             }
 
-            if ("urn:schemas-upnp-org:service:WANCommonInterfaceConfig:1".equals(
-                    serv.getServiceType())) {
-                Action getIP = serv.getAction("GetCommonLinkProperties");
+            Logger.minor(this,
+                         "Received event " + seq + " from " + gateway + ": " + varName + "=" +
+                         value);
+
+            if ( !gateway.eventNotifyReceived(varName, value)) {
+                return;
+            }
+
+            requestStatusRefresh();
+
+            // A connection going up or down may make another IGD a better choice
+            if ("ConnectionStatus".equals(varName) && (getGateways().size() > 1)) {
+                requestGatewaySelection();
+            }
+
+            return;
+        }
+    }
+
+    /**
+     * Changes how long we trust what the IGDs told us, in milliseconds.
+     */
+    public void setCacheTTLs(long externalIPTTL, long connectionStatusTTL,
+                             long linkBitRatesTTL) {
+        this.externalIPTTL = externalIPTTL;
+        this.connectionStatusTTL = connectionStatusTTL;
+        this.linkBitRatesTTL = linkBitRatesTTL;
+
+        for (Gateway gateway : getGateways()) {
+            gateway.setCacheTTLs(externalIPTTL, connectionStatusTTL, linkBitRatesTTL);
+        }
+    }
 
-                if ((getIP != null) && getIP.postControlAction()) {
-                    try {
-                        return Integer.valueOf(
-                            getIP.getOutputArgumentList().getArgument(
-                                "NewLayer1DownstreamMaxBitRate").getValue());
-                    } catch (NumberFormatException e) {
+    /**
+     * @return every IGD we know about, in the order we found them
+     */
+    List<Gateway> getGateways() {
+        synchronized (lock) {
+            return new ArrayList<Gateway>(gateways.values());
+        }
+    }
+
+    /**
+     * @return the IGD we report from, or null if there is none
+     */
+    Gateway getPrimaryGateway() {
+        synchronized (lock) {
+            return primary;
+        }
+    }
+
+    private boolean isGatewayPresent(Gateway gateway) {
+        synchronized (lock) {
+            return gateways.get(gateway.getUDN()) == gateway;
+        }
+    }
+
+    /**
+     * @return the gateways the ports are to be forwarded on
+     */
+    private List<Gateway> getActiveGateways() {
+        if (forwardOnAllGateways) {
+            return getGateways();
+        }
 
-                        // ignore, try next
-                    }
-                }
-            }
+        Gateway gateway = getPrimaryGateway();
 
-            if ("urn:schemas-upnp-org:service:WANPPPConnection:1".equals(serv.getServiceType())) {
-                Action getIP = serv.getAction("GetLinkLayerMaxBitRates");
+        if (gateway == null) {
+            return Collections.emptyList();
+        }
 
-                if ((getIP != null) && getIP.postControlAction()) {
-                    try {
-                        return Integer.valueOf(
-                            getIP.getOutputArgumentList().getArgument(
-                                "NewDownstreamMaxBitRate").getValue());
-                    } catch (NumberFormatException e) {
+        return Collections.singletonList(gateway);
+    }
 
-                        // ignore, try next
-                    }
-                }
-            }
+    /**
+     * Whether to forward the ports on every IGD found on the LAN, rather than on the primary
+     * one only. Useful when we don't know which one the traffic will come through.
+     */
+    public void setForwardOnAllGateways(boolean all) {
+        if (forwardOnAllGateways == all) {
+            return;
         }
 
-        DeviceList dl = dev.getDeviceList();
+        forwardOnAllGateways = all;
 
-        for (int j = 0; j < dl.size(); j++) {
-            Device subDev = dl.getDevice(j);
+        Gateway main = getPrimaryGateway();
 
-            if (subDev == null) {
+        for (Gateway gateway : getGateways()) {
+            if (gateway == main) {
                 continue;
             }
 
-            int x = getDownstreamMaxBitRate(subDev);
-
-            if (x != -1) {
-                return x;
+            if (all) {
+                registerPortMappings(gateway);
+            } else {
+                gateway.getPortMapper().shutdown();
+                unregisterPorts(gateway, gateway.getPortsForwarded());
             }
         }
 
-        return -1;
+        requestStatusRefresh();
     }
 
-    private int getUpstreamMaxBitRate(Device dev) {
-        ServiceList sl = dev.getServiceList();
-
-        for (int i = 0; i < sl.size(); i++) {
-            Service serv = sl.getService(i);
+    /**
+     * Changes where we remember the IGD we used last, so that the next run can use it without
+     * waiting for SSDP discovery. null disables that.
+     */
+    public void setGatewayCacheFile(File file) {
+        gatewayCache = (file == null) ? null : new GatewayCache(file);
+    }
 
-            if (serv == null) {
-                continue;
-            }
+    /**
+     * Changes where we record the mappings we make, so that the run following a crash can clean
+     * up after it. null disables that. Only takes effect if called before the plugin starts.
+     */
+    public void setMappingJournalFile(File file) {
+        mappingJournal = (file == null) ? null : new MappingJournal(file);
+    }
 
-            if ("urn:schemas-upnp-org:service:WANCommonInterfaceConfig:1".equals(
-                    serv.getServiceType())) {
-                Action getIP = serv.getAction("GetCommonLinkProperties");
+    /**
+     * @return where we record the mappings we make, or null
+     */
+    MappingJournal getMappingJournal() {
+        return mappingJournal;
+    }
 
-                if ((getIP != null) && getIP.postControlAction()) {
-                    try {
-                        return Integer.valueOf(
-                            getIP.getOutputArgumentList().getArgument(
-                                "NewLayer1UpstreamMaxBitRate").getValue());
-                    } catch (NumberFormatException e) {
+    /**
+     * @return whether we are behind an UPnP-enabled NAT/router
+     */
+    public boolean isNATPresent() {
+        return getPrimaryGateway() != null;
+    }
 
-                        // ignore, try next
-                    }
-                }
-            }
+    /**
+     * @return the external address the NAT thinks we have.  Blocking, unless we already know it.
+     * null if we can't find it.
+     */
+    public String getNATAddress() {
+        Gateway gateway = getPrimaryGateway();
 
-            if ("urn:schemas-upnp-org:service:WANPPPConnection:1".equals(serv.getServiceType())) {
-                Action getIP = serv.getAction("GetLinkLayerMaxBitRates");
+        return (gateway == null) ? null : gateway.getNATAddress();
+    }
 
-                if ((getIP != null) && getIP.postControlAction()) {
-                    try {
-                        return Integer.valueOf(
-                            getIP.getOutputArgumentList().getArgument(
-                                "NewUpstreamMaxBitRate").getValue());
-                    } catch (NumberFormatException e) {
+    /**
+     * @return the status of the WAN connection of the IGD, e.g. "Connected".  Blocking, unless
+     * we already know it. null if we can't find it.
+     */
+    public String getConnectionStatus() {
+        Gateway gateway = getPrimaryGateway();
 
-                        // ignore, try next
-                    }
-                }
-            }
-        }
+        return (gateway == null) ? null : gateway.getConnectionStatus();
+    }
 
-        DeviceList dl = dev.getDeviceList();
+    /**
+     * @return the reported upstream bit rate in bits per second. -1 if it's not available.
+     *     Blocking, unless we already know it.
+     */
+    public int getUpstramMaxBitRate() {
+        Gateway gateway = getPrimaryGateway();
 
-        for (int j = 0; j < dl.size(); j++) {
-            Device subDev = dl.getDevice(j);
+        if ((gateway == null) || thinksWeAreDoubleNatted) {
+            return -1;
+        }
 
-            if (subDev == null) {
-                continue;
-            }
+        return gateway.getLinkBitRates()[0];
+    }
 
-            int x = getUpstreamMaxBitRate(subDev);
+    /**
+     * @return the reported downstream bit rate in bits per second. -1 if it's not available.
+     *     Blocking, unless we already know it.
+     */
+    public int getDownstreamMaxBitRate() {
+        Gateway gateway = getPrimaryGateway();
 
-            if (x != -1) {
-                return x;
-            }
+        if ((gateway == null) || thinksWeAreDoubleNatted) {
+            return -1;
         }
 
-        return -1;
+        return gateway.getLinkBitRates()[1];
     }
 
     private void listStateTable(Service serv, StringBuilder sb) {
@@ -600,15 +1212,7 @@ public class UPnP extends ControlPoint
     }
 
     private String toString(String action, String Argument, Service serv) {
-        Action getIP = serv.getAction(action);
-
-        if ((getIP == null) || !getIP.postControlAction()) {
-            return null;
-        }
-
-        Argument ret = getIP.getOutputArgumentList().getArgument(Argument);
-
-        return ret.getValue();
+        return Gateway.getOutputArgument(serv, action, Argument);
     }
 
     // TODO: extend it! RTFM
@@ -662,7 +1266,7 @@ public class UPnP extends ControlPoint
                 sb.append(format("DefaultConnectionService: %s",
                                  encode(toString("GetDefaultConnectionService",
                                      "NewDefaultConnectionService", serv))));
-            } else if (WAN_IP_CONNECTION.equals(serv.getServiceType())) {
+            } else if (Gateway.WAN_IP_CONNECTION.equals(serv.getServiceType())) {
                 sb.append("WANIPConnection");
                 sb.append(format(" status: %s",
                                  encode(toString("GetStatusInfo", "NewConnectionStatus", serv))));
@@ -710,37 +1314,185 @@ public class UPnP extends ControlPoint
         sb.append("</p></div>");
     }
 
+
+    /**
+     * Asks for the status snapshot to be collected again in the background. Requests made while
+     * one is already queued are merged into it.
+     */
+    private void requestStatusRefresh() {
+        synchronized (lock) {
+            if (isStatusRefreshPending) {
+                return;
+            }
+
+            isStatusRefreshPending = true;
+        }
+
+        execute(new Runnable() {
+            public void run() {
+                synchronized (lock) {
+                    isStatusRefreshPending = false;
+                }
+
+                collectStatus();
+            }
+        });
+    }
+
+    /**
+     * Asks every IGD what the status page shows, then publishes it all at once. Blocking, but
+     * the answers are mostly cached.
+     */
+    private void collectStatus() {
+        List<Gateway> all = getGateways();
+        List<StatusSnapshot.GatewayStatus> statuses =
+            new ArrayList<StatusSnapshot.GatewayStatus>();
+        Gateway main = getPrimaryGateway();
+        Set<ForwardPort> ports = new HashSet<ForwardPort>();
+
+        synchronized (lock) {
+            if (portsToForward != null) {
+                ports.addAll(portsToForward);
+            }
+        }
+
+        for (Gateway gateway : all) {
+            long start = System.currentTimeMillis();
+            String natAddress = gateway.getNATAddress();
+
+            if (natAddress == null) {
+                gateway.setLastError("Couldn't get the external IP address");
+
+                // The ControlPoint doesn't know about it, so nothing else would tell us it is gone
+                if (gateway.isFromCache()) {
+                    Logger.normal(this,
+                                  "The UPnP IGD we used last time (" + gateway +
+                                  ") doesn't answer anymore, dropping it");
+
+                    GatewayCache cache = gatewayCache;
+
+                    if (cache != null) {
+                        cache.delete();
+                    }
+
+                    removeGateway(gateway.getUDN(), gateway);
+
+                    continue;
+                }
+            }
+
+            String connectionStatus = gateway.getConnectionStatus();
+            int[] rates = gateway.getLinkBitRates();
+
+            statuses.add(new StatusSnapshot.GatewayStatus(gateway.getUDN(),
+                    gateway.getFriendlyName(), gateway == main,
+                    forwardOnAllGateways || (gateway == main), gateway.isFromCache(),
+                    natAddress, connectionStatus, rates[0], rates[1],
+                    gateway.getPortsForwarded(), gateway.getPortStatus(),
+                    gateway.getPortTries(), gateway.getLastError(), gateway.getLastErrorTime(),
+                    System.currentTimeMillis() - start));
+        }
+
+        status = new StatusSnapshot(System.currentTimeMillis(), statuses, ports);
+    }
+
+    Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return what the status page shows, as last collected; never blocks
+     */
+    StatusSnapshot getStatus() {
+        return status;
+    }
+
+    /**
+     * Forgets the capabilities report; to be called whenever the set of IGDs changes.
+     */
+    private void invalidateCapabilitiesReport() {
+        synchronized (lock) {
+            capabilitiesReport = null;
+            capabilitiesReportGeneration++;
+        }
+    }
+
+    /**
+     * @return the capabilities report of all the IGDs, or null if it is being generated in the
+     *     background
+     */
+    private String getCapabilitiesReport() {
+        final long generation;
+
+        synchronized (lock) {
+            if (capabilitiesReport != null) {
+                return capabilitiesReport;
+            }
+
+            if (isCapabilitiesReportPending) {
+                return null;
+            }
+
+            isCapabilitiesReportPending = true;
+            generation = capabilitiesReportGeneration;
+        }
+
+        execute(new Runnable() {
+            public void run() {
+
+                // Walking the device tree downloads the SCPDs we don't have yet
+                final StringBuilder sb = new StringBuilder();
+
+                sb.append("<html><head><title>UPnP report</title></head><body>");
+
+                for (Gateway gateway : getGateways()) {
+                    listSubDev("WANDevice", gateway.getDevice(), sb);
+                }
+
+                sb.append("</body></html>");
+
+                synchronized (lock) {
+                    isCapabilitiesReportPending = false;
+
+                    if (generation == capabilitiesReportGeneration) {
+                        capabilitiesReport = sb.toString();
+                    }
+                }
+            }
+        });
+
+        return null;
+    }
+
     public String handleHTTPGet(HTTPRequest request) throws PluginHTTPException {
+        String format = request.getParam("format");
+
+        // Served from what we already know: scraping them never reaches an IGD
+        if ("json".equals(format)) {
+            return metrics.toJSON(status, this);
+        } else if ("prometheus".equals(format)) {
+            return metrics.toPrometheus(status, this);
+        }
+
         if (request.isParameterSet("getDeviceCapabilities")) {
-            final StringBuilder sb = new StringBuilder();
+            String report = getCapabilitiesReport();
 
-            sb.append("<html><head><title>UPnP report</title></head><body>");
-            listSubDev("WANDevice", _router, sb);
-            sb.append("</body></html>");
+            if (report != null) {
+                return report;
+            }
 
-            return sb.toString();
+            return "<html><head><title>UPnP report</title>" +
+                   "<meta http-equiv=\"refresh\" content=\"" + REPORT_RELOAD_DELAY + "\">" +
+                   "</head><body>The report is being generated, please wait...</body></html>";
         }
 
+        StatusSnapshot snapshot = status;
         PageNode page = pr.getPageMaker().getPageNode("UPnP plugin configuration page", false,
                             null);
         HTMLNode pageNode = page.outer;
         HTMLNode contentNode = page.content;
 
-        if (isDisabled) {
-            HTMLNode disabledInfobox = contentNode.addChild("div", "class",
-                                           "infobox infobox-error");
-            HTMLNode disabledInfoboxHeader = disabledInfobox.addChild("div", "class",
-                                                 "infobox-header");
-            HTMLNode disabledInfoboxContent = disabledInfobox.addChild("div", "class",
-                                                  "infobox-content");
-
-            disabledInfoboxHeader.addChild("#", "UPnP plugin report");
-            disabledInfoboxContent.addChild(
-                "#",
-                "The plugin has been disabled; Do you have more than one UPnP IGD on your LAN ?");
-
-            return pageNode.generate();
-        } else if ( !isNATPresent()) {
+        if (snapshot.gateways.isEmpty()) {
             HTMLNode notFoundInfobox = contentNode.addChild("div", "class",
                                            "infobox infobox-warning");
             HTMLNode notFoundInfoboxHeader = notFoundInfobox.addChild("div", "class",
@@ -755,48 +1507,81 @@ public class UPnP extends ControlPoint
             return pageNode.generate();
         }
 
-        HTMLNode foundInfobox = contentNode.addChild("div", "class", "infobox infobox-normal");
-        HTMLNode foundInfoboxHeader = foundInfobox.addChild("div", "class", "infobox-header");
-        HTMLNode foundInfoboxContent = foundInfobox.addChild("div", "class", "infobox-content");
+        for (StatusSnapshot.GatewayStatus gateway : snapshot.gateways) {
+            HTMLNode foundInfobox = contentNode.addChild("div", "class",
+                                        "infobox infobox-normal");
+            HTMLNode foundInfoboxHeader = foundInfobox.addChild("div", "class",
+                                              "infobox-header");
+            HTMLNode foundInfoboxContent = foundInfobox.addChild("div", "class",
+                                               "infobox-content");
 
-        // FIXME L10n!
-        foundInfoboxHeader.addChild("#", "UPnP plugin report");
-        foundInfoboxContent.addChild("p", "The following device has been found: ").addChild("a",
-                                     "href", "?getDeviceCapabilities").addChild("#",
-                                         _router.getFriendlyName());
-        foundInfoboxContent.addChild("p", "Our current external ip address is: " + getNATAddress());
+            // FIXME L10n!
+            foundInfoboxHeader.addChild("#", "UPnP plugin report");
 
-        int downstreamMaxBitRate = getDownstreamMaxBitRate();
-        int upstreamMaxBitRate = getUpstramMaxBitRate();
+            HTMLNode deviceNode = foundInfoboxContent.addChild("p",
+                                      "The following device has been found: ");
 
-        if (downstreamMaxBitRate > 0) {
-            foundInfoboxContent.addChild("p",
-                                         "Our reported max downstream bit rate is: " +
-                                         getDownstreamMaxBitRate() + " bits/sec");
-        }
+            deviceNode.addChild("a", "href", "?getDeviceCapabilities").addChild("#",
+                                gateway.friendlyName);
+
+            if (gateway.isPrimary) {
+                deviceNode.addChild("#", " (this is the one we use)");
+            }
 
-        if (upstreamMaxBitRate > 0) {
             foundInfoboxContent.addChild("p",
-                                         "Our reported max upstream bit rate is: " +
-                                         getUpstramMaxBitRate() + " bits/sec");
-        }
+                                         "Our current external ip address is: " +
+                                         gateway.externalIP);
 
-        synchronized (lock) {
-            if (portsToForward != null) {
-                for (ForwardPort port : portsToForward) {
-                    if (portsForwarded.contains(port)) {
+            if (gateway.connectionStatus != null) {
+                foundInfoboxContent.addChild("p",
+                                             "The WAN connection status is: " +
+                                             gateway.connectionStatus);
+            }
+
+            if (gateway.downstreamMaxBitRate > 0) {
+                foundInfoboxContent.addChild("p",
+                                             "Our reported max downstream bit rate is: " +
+                                             gateway.downstreamMaxBitRate + " bits/sec");
+            }
+
+            if (gateway.upstreamMaxBitRate > 0) {
+                foundInfoboxContent.addChild("p",
+                                             "Our reported max upstream bit rate is: " +
+                                             gateway.upstreamMaxBitRate + " bits/sec");
+            }
+
+            if (gateway.isActive) {
+                for (ForwardPort port : snapshot.portsToForward) {
+                    if (gateway.portsForwarded.contains(port)) {
                         foundInfoboxContent.addChild("p",
                                                      "The " + port.name + " port " +
                                                      port.portNumber + " / " + port.protocol +
                                                      " has been forwarded successfully.");
                     } else {
+                        ForwardPortStatus portStatus = gateway.portStatus.get(port);
+
                         foundInfoboxContent.addChild("p",
                                                      "The " + port.name + " port " +
                                                      port.portNumber + " / " + port.protocol +
-                                                     " has not been forwarded.");
+                                                     " has not been forwarded" +
+                                                     ((portStatus == null)
+                                                      ? "." : ": " + portStatus.reasonString));
                     }
                 }
             }
+
+            if (gateway.lastError != null) {
+                foundInfoboxContent.addChild("p",
+                                             "Last error, " +
+                                             ((snapshot.timestamp - gateway.lastErrorTime) /
+                                              1000) + " seconds ago: " + gateway.lastError);
+            }
+
+            foundInfoboxContent.addChild("p",
+                                         "Collected " +
+                                         ((System.currentTimeMillis() - snapshot.timestamp) /
+                                          1000) + " seconds ago, in " +
+                                         gateway.collectionTime + " ms.");
         }
 
         return pageNode.generate();
@@ -806,71 +1591,54 @@ public class UPnP extends ControlPoint
         return null;
     }
 
-    private boolean addMapping(String protocol, int port, String description, ForwardPort fp) {
-        if (isDisabled || !isNATPresent() || (_router == null)) {
-            return false;
-        }
-
-        // Just in case...
-        removeMapping(protocol, port, fp, true);
-
-        Action add = _service.getAction("AddPortMapping");
-
-        if (add == null) {
-            Logger.error(this, "Couldn't find AddPortMapping action!");
-
-            return false;
-        }
-
-        add.setArgumentValue("NewRemoteHost", "");
-        add.setArgumentValue("NewExternalPort", port);
-        add.setArgumentValue("NewInternalClient", _router.getInterfaceAddress());
-        add.setArgumentValue("NewInternalPort", port);
-        add.setArgumentValue("NewProtocol", protocol);
-        add.setArgumentValue("NewPortMappingDescription", description);
-        add.setArgumentValue("NewEnabled", "1");
-        add.setArgumentValue("NewLeaseDuration", 0);
-
-        if (add.postControlAction()) {
-            synchronized (lock) {
-                portsForwarded.add(fp);
-            }
-
-            return true;
-        } else {
-            return false;
-        }
+    /**
+     * @return the lease to ask for new mappings, in seconds; 0 means permanent
+     */
+    int getLeaseDuration() {
+        return leaseDuration;
     }
 
-    private boolean removeMapping(String protocol, int port, ForwardPort fp, boolean noLog) {
-        if (isDisabled || !isNATPresent()) {
-            return false;
+    /**
+     * Changes the lease we ask for our mappings, in seconds. 0 asks for permanent mappings,
+     * which many routers refuse or silently cap. Takes effect on the next renewal.
+     */
+    public void setLeaseDuration(int seconds) {
+        if (seconds < 0) {
+            throw new IllegalArgumentException("Negative lease duration: " + seconds);
         }
 
-        Action remove = _service.getAction("DeletePortMapping");
-
-        if (remove == null) {
-            Logger.error(this, "Couldn't find DeletePortMapping action!");
-
-            return false;
-        }
+        leaseDuration = seconds;
+    }
 
-        // remove.setArgumentValue("NewRemoteHost", "");
-        remove.setArgumentValue("NewExternalPort", port);
-        remove.setArgumentValue("NewProtocol", protocol);
+    /**
+     * Whether to look at the router's port mapping table before adding mappings, so that only
+     * the missing ones get added, instead of blindly deleting then adding each of them.
+     */
+    public void setReconcileMappings(boolean reconcile) {
+        reconcileMappings = reconcile;
+    }
 
-        boolean retval = remove.postControlAction();
+    boolean isReconcilingMappings() {
+        return reconcileMappings;
+    }
 
+    /**
+     * @return whether the node currently wants that port forwarded
+     */
+    boolean isForwardWanted(String protocol, int port) {
         synchronized (lock) {
-            portsForwarded.remove(fp);
-        }
+            if (portsToForward == null) {
+                return false;
+            }
 
-        if ( !noLog) {
-            System.err.println("UPnP: Removed mapping for " + fp.name + " " + port + " / " +
-                               protocol);
+            for (ForwardPort fp : portsToForward) {
+                if ((fp.portNumber == port) && protocol.equals(getProtocol(fp))) {
+                    return true;
+                }
+            }
         }
 
-        return retval;
+        return false;
     }
 
     public void onChangePublicPorts(Set<ForwardPort> ports, ForwardPortCallback cb) {
@@ -934,7 +1702,7 @@ public class UPnP extends ControlPoint
                 portsToForward = ports;
             }
 
-            if (_router == null) {
+            if (gateways.isEmpty()) {
                 return;  // When one is found, we will do the forwards
             }
         }
@@ -946,70 +1714,101 @@ public class UPnP extends ControlPoint
         if (portsToForwardNow != null) {
             registerPorts(portsToForwardNow);
         }
+
+        requestStatusRefresh();
     }
 
     private void registerPorts(Set<ForwardPort> portsToForwardNow) {
-        for (ForwardPort port : portsToForwardNow) {
-            String proto;
+        for (Gateway gateway : getActiveGateways()) {
+            Set<ForwardPort> ports = replayJournal(gateway, portsToForwardNow);
 
-            if (port.protocol == ForwardPort.PROTOCOL_UDP_IPV4) {
-                proto = "UDP";
-            } else if (port.protocol == ForwardPort.PROTOCOL_TCP_IPV4) {
-                proto = "TCP";
-            } else {
-                HashMap<ForwardPort, ForwardPortStatus> map = new HashMap<ForwardPort,
-                                                                  ForwardPortStatus>();
+            if ( !ports.isEmpty()) {
+                gateway.getPortMapper().forward(ports);
+            }
+        }
+    }
 
-                map.put(port,
-                        new ForwardPortStatus(ForwardPortStatus.DEFINITE_FAILURE,
-                                              "Protocol not supported", port.portNumber));
-                forwardCallback.portForwardStatus(map);
+    private void unregisterPorts(Set<ForwardPort> portsToForwardNow) {
+        List<Gateway> active = getActiveGateways();
 
-                continue;
+        for (Gateway gateway : getGateways()) {
+            Set<ForwardPort> ports = portsToForwardNow;
+
+            if ( !active.contains(gateway)) {
+
+                // Only undo what we did on it
+                ports = new HashSet<ForwardPort>(portsToForwardNow);
+                ports.retainAll(gateway.getPortsForwarded());
             }
 
-            if (tryAddMapping(proto, port.portNumber, port.name, port)) {
-                HashMap<ForwardPort, ForwardPortStatus> map = new HashMap<ForwardPort,
-                                                                  ForwardPortStatus>();
+            unregisterPorts(gateway, ports);
+        }
+    }
 
-                map.put(port,
-                        new ForwardPortStatus(ForwardPortStatus.MAYBE_SUCCESS,
-                                              "Port apparently forwarded by UPnP",
-                                              port.portNumber));
-                forwardCallback.portForwardStatus(map);
+    private void unregisterPorts(Gateway gateway, Set<ForwardPort> portsToForwardNow) {
+        for (ForwardPort port : portsToForwardNow) {
+            gateway.getPortMapper().cancel(port);
 
-                continue;
-            } else {
-                HashMap<ForwardPort, ForwardPortStatus> map = new HashMap<ForwardPort,
-                                                                  ForwardPortStatus>();
+            String proto = getProtocol(port);
 
-                map.put(port,
-                        new ForwardPortStatus(ForwardPortStatus.PROBABLE_FAILURE,
-                                              "UPnP port forwarding apparently failed",
-                                              port.portNumber));
-                forwardCallback.portForwardStatus(map);
+            if (proto == null) {
 
+                // Ignore, we've already complained about it
                 continue;
             }
+
+            gateway.removeMapping(proto, port.portNumber, port, false);
         }
     }
 
-    private void unregisterPorts(Set<ForwardPort> portsToForwardNow) {
-        for (ForwardPort port : portsToForwardNow) {
-            String proto;
+    /**
+     * @return the UPnP name of the protocol of that port, or null if we can't forward it
+     */
+    static String getProtocol(ForwardPort port) {
+        if (port.protocol == ForwardPort.PROTOCOL_UDP_IPV4) {
+            return "UDP";
+        } else if (port.protocol == ForwardPort.PROTOCOL_TCP_IPV4) {
+            return "TCP";
+        }
 
-            if (port.protocol == ForwardPort.PROTOCOL_UDP_IPV4) {
-                proto = "UDP";
-            } else if (port.protocol == ForwardPort.PROTOCOL_TCP_IPV4) {
-                proto = "TCP";
-            } else {
+        return null;
+    }
 
-                // Ignore, we've already complained about it
-                continue;
+    /**
+     * Reports the status of a single port to the node. Only the primary IGD speaks for the node;
+     * what the other ones say is merely logged.
+     */
+    void portForwardStatus(Gateway gateway, ForwardPort port, ForwardPortStatus status) {
+        ForwardPortCallback cb;
+
+        gateway.setPortStatus(port, status);
+
+        if (status.status < 0) {
+            gateway.setLastError("Port " + port.name + ": " + status.reasonString);
+        }
+
+        requestStatusRefresh();
+
+        synchronized (lock) {
+            if (gateway != primary) {
+                Logger.normal(this,
+                              "Port " + port.name + " on " + gateway + ": " + status.reasonString);
+
+                return;
             }
 
-            removeMapping(proto, port.portNumber, port, false);
+            cb = forwardCallback;
+        }
+
+        if (cb == null) {
+            return;
         }
+
+        HashMap<ForwardPort, ForwardPortStatus> map = new HashMap<ForwardPort,
+                                                          ForwardPortStatus>();
+
+        map.put(port, status);
+        cb.portForwardStatus(map);
     }
 
     public String getVersion() {
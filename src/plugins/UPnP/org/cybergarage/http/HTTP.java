@@ -72,6 +72,14 @@ public class HTTP {
     public static final String CHUNKED = "Chunked";
     public static final String LOCATION = "Location";
     public static final String SERVER = "Server";
+    public static final String ETAG = "ETag";
+    public static final String LAST_MODIFIED = "Last-Modified";
+    public static final String IF_NONE_MATCH = "If-None-Match";
+    public static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    // UPnP Device Architecture 1.1
+    public static final String BOOTID_UPNP_ORG = "BOOTID.UPNP.ORG";
+    public static final String CONFIGID_UPNP_ORG = "CONFIGID.UPNP.ORG";
     public static final String ST = "ST";
     public static final String MX = "MX";
     public static final String MAN = "MAN";
@@ -0,0 +1,173 @@
+/******************************************************************
+*
+*   CyberUPnP for Java
+*
+*   File: AnnouncementPlan.java
+*
+*   Revision:
+*
+*   10/17/26
+*       - first revision.
+*
+******************************************************************/
+
+
+package plugins.UPnP.org.cybergarage.upnp;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import plugins.UPnP.org.cybergarage.net.*;
+import plugins.UPnP.org.cybergarage.util.*;
+import plugins.UPnP.org.cybergarage.upnp.ssdp.*;
+import plugins.UPnP.org.cybergarage.upnp.device.*;
+
+/**
+ * The NOTIFYs of a device tree: the device, its services and its children.
+ * They are rendered once per local address, and the rendering is kept until
+ * the device changes what it announces (see invalidate()), so a burst is
+ * nothing more than a few datagrams sent in a row.
+ *
+ * The datagrams of a burst are spaced by PACING milliseconds, instead of a
+ * random wait before each service as it used to be.
+ */
+public class AnnouncementPlan {
+    /** Between two datagrams of a burst, in milliseconds */
+    public final static int PACING = 20;
+
+    ////////////////////////////////////////////////
+    // Member
+    ////////////////////////////////////////////////
+    private final Device dev;
+
+    /**
+     * Replaced as a whole by invalidate(), so a rendering which was under
+     * way at that time ends up in the discarded one.
+     */
+    private volatile Rendering rendering = new Rendering();
+
+    private static class Rendering {
+        /** bindAddr -> the ssdp:alive NOTIFYs */
+        final ConcurrentHashMap<String, byte[][]> aliveMessages =
+            new ConcurrentHashMap<String, byte[][]>();
+
+        /** bindAddr -> the ssdp:byebye NOTIFYs */
+        final ConcurrentHashMap<String, byte[][]> byebyeMessages =
+            new ConcurrentHashMap<String, byte[][]>();
+    }
+
+    ////////////////////////////////////////////////
+    // Constructor
+    ////////////////////////////////////////////////
+    AnnouncementPlan(Device dev) {
+        this.dev = dev;
+    }
+
+    /**
+     * Forgets the rendered messages; they are rendered again on the next
+     * burst.
+     */
+    public void invalidate() {
+        rendering = new Rendering();
+    }
+
+    /**
+     * Forgets the rendered messages of the local addresses which aren't in
+     * bindAddrs any more.
+     */
+    public void retainAddresses(Collection<String> bindAddrs) {
+        Rendering r = rendering;
+
+        r.aliveMessages.keySet().retainAll(bindAddrs);
+        r.byebyeMessages.keySet().retainAll(bindAddrs);
+    }
+
+    private void forgetAddress(String bindAddr) {
+        Rendering r = rendering;
+
+        r.aliveMessages.remove(bindAddr);
+        r.byebyeMessages.remove(bindAddr);
+    }
+
+    ////////////////////////////////////////////////
+    // announce/byebye
+    ////////////////////////////////////////////////
+    public void announce(String bindAddr) {
+        send(bindAddr, getMessages(bindAddr, NTS.ALIVE));
+    }
+
+    public void byebye(String bindAddr) {
+        send(bindAddr, getMessages(bindAddr, NTS.BYEBYE));
+    }
+
+    private byte[][] getMessages(String bindAddr, String nts) {
+        Rendering r = rendering;
+        ConcurrentHashMap<String, byte[][]> cache =
+            (NTS.isAlive(nts) == true) ? r.aliveMessages : r.byebyeMessages;
+        byte[][] msgs = cache.get(bindAddr);
+
+        if (msgs != null) {
+            return msgs;
+        }
+
+        String ssdpAddr = getSSDPAddress(bindAddr);
+        List<SSDPNotifyRequest> reqs = new ArrayList<SSDPNotifyRequest>();
+
+        dev.getNotifyRequests(bindAddr, nts, reqs);
+        msgs = new byte[reqs.size()][];
+
+        for (int n = 0; n < msgs.length; n++) {
+            SSDPNotifyRequest req = reqs.get(n);
+
+            req.setHost(ssdpAddr, SSDP.PORT);
+            msgs[n] = req.toString().getBytes();
+        }
+
+        // Rendered from the device as it is now; if it has been invalidated
+        // meanwhile, r is no longer used and the next burst renders again
+        cache.put(bindAddr, msgs);
+
+        return msgs;
+    }
+
+    private static String getSSDPAddress(String bindAddr) {
+        if (HostInterface.isIPv6Address(bindAddr) == true) {
+            return SSDP.getIPv6Address();
+        }
+
+        return SSDP.ADDRESS;
+    }
+
+    private void send(String bindAddr, byte[][] msgs) {
+        InetAddress ssdpAddr;
+
+        try {
+            ssdpAddr = InetAddress.getByName(getSSDPAddress(bindAddr));
+        } catch (UnknownHostException e) {
+            Debug.warning(e);
+
+            return;
+        }
+
+        SSDPSender sender = SSDPSender.acquire(bindAddr);
+
+        try {
+            for (int n = 0; n < msgs.length; n++) {
+                if (n > 0) {
+                    TimerUtil.wait(PACING);
+                }
+
+                if (sender.send(msgs[n], ssdpAddr, SSDP.PORT) == false) {
+
+                    // The address has gone away: the rest would fail as well
+                    forgetAddress(bindAddr);
+
+                    return;
+                }
+            }
+        } finally {
+            sender.release();
+        }
+    }
+}
@@ -70,6 +70,26 @@ import plugins.UPnP.org.cybergarage.upnp.device.*;
 import plugins.UPnP.org.cybergarage.upnp.event.*;
 
 import java.net.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ControlPoint implements HTTPRequestListener {
     private final static int DEFAULT_EVENTSUB_PORT = 8058;
@@ -77,18 +97,33 @@ public class ControlPoint implements HTTPRequestListener {
     private final static int DEFAULT_EXPIRED_DEVICE_MONITORING_INTERVAL = 60;
     private final static String DEFAULT_EVENTSUB_URI = "/evetSub";
 
+    // Descriptions are downloaded by that many threads at most, and that many
+    // more wait for one; announcements past that are dropped, the devices will
+    // announce themselves again
+    private final static int MAX_DESCRIPTION_FETCHES = 4;
+    private final static int MAX_PENDING_DESCRIPTION_FETCHES = 64;
+    private final static long DESCRIPTION_FETCHER_KEEP_ALIVE = 60;
+
+    // The async listeners share that many threads; a listener only ever
+    // holds one of them, so a stuck listener doesn't stop the others
+    private final static int MAX_LISTENER_THREADS = 4;
+
+    // How many subscription renewals may go out at once
+    private final static int MAX_SUBSCRIPTION_RENEWALS = 2;
+
+    // How many requests stop() sends at once
+    private final static int MAX_STOP_TASKS = 8;
+
+    /** How long stop() waits for the UNSUBSCRIBE requests, in milliseconds */
+    public final static long DEFAULT_STOP_TIMEOUT = 5000;
+
     ////////////////////////////////////////////////
     // Member
     ////////////////////////////////////////////////
-    private SSDPNotifySocketList ssdpNotifySocketList;
-    private SSDPSearchResponseSocketList ssdpSearchResponseSocketList;
+    private final SSDPEngine ssdpEngine = new SSDPEngine(this);
 
-    private SSDPNotifySocketList getSSDPNotifySocketList() {
-        return ssdpNotifySocketList;
-    }
-
-    private SSDPSearchResponseSocketList getSSDPSearchResponseSocketList() {
-        return ssdpSearchResponseSocketList;
+    private SSDPEngine getSSDPEngine() {
+        return ssdpEngine;
     }
 
     ////////////////////////////////////////////////
@@ -102,15 +137,11 @@ public class ControlPoint implements HTTPRequestListener {
     // Constructor
     ////////////////////////////////////////////////
     public ControlPoint(int ssdpPort, int httpPort) {
-        ssdpNotifySocketList = new SSDPNotifySocketList();
-        ssdpSearchResponseSocketList = new SSDPSearchResponseSocketList();
         setSSDPPort(ssdpPort);
         setHTTPPort(httpPort);
         setDeviceDisposer(null);
         setExpiredDeviceMonitoringInterval(DEFAULT_EXPIRED_DEVICE_MONITORING_INTERVAL);
-        setRenewSubscriber(null);
         setNMPRMode(false);
-        setRenewSubscriber(null);
     }
 
     public ControlPoint() {
@@ -176,55 +207,369 @@ public class ControlPoint implements HTTPRequestListener {
     ////////////////////////////////////////////////
     // Device List
     ////////////////////////////////////////////////
-    private NodeList devNodeList = new NodeList();
+    /** Each root device and its embedded devices, root first, by UDN of the root */
+    private final ConcurrentHashMap<String, DeviceList> deviceTrees =
+        new ConcurrentHashMap<String, DeviceList>();
+
+    /**
+     * Every root and embedded device, by UDN. A device keeps the same Device
+     * object for as long as we know it, so looking it up allocates nothing.
+     */
+    private final ConcurrentHashMap<String, Device> devices =
+        new ConcurrentHashMap<String, Device>();
+
+    /**
+     * The root devices, in the order they were found. Guarded by
+     * synchronized (deviceTrees); never handed out, see rootDeviceList.
+     */
+    private List<Device> rootDevices = new ArrayList<Device>();
+
+    /**
+     * A read-only copy of rootDevices. It is replaced whenever a root device
+     * is added or removed, so readers can use it as is.
+     */
+    private volatile DeviceList rootDeviceList =
+        new ReadOnlyDeviceList(rootDevices);
+
+    /** Bumped after each replacement of rootDeviceList */
+    private volatile long deviceListVersion = 0;
+
+    private void addDevice(Device rootDev) {
+        DeviceList tree = new DeviceList();
+
+        flattenDevice(rootDev, tree);
+
+        synchronized (deviceTrees) {
+            DeviceList oldTree = deviceTrees.put(rootDev.getUDN(), tree);
+            List<Device> devList = new ArrayList<Device>(rootDevices);
+
+            if (oldTree != null) {
+                unindexDevices(oldTree);
+                devList.remove(oldTree.getDevice(0));
+            }
+
+            devList.add(rootDev);
+            publishDeviceList(devList);
+
+            SSDPPacket ssdpPacket = rootDev.getSSDPPacket();
+
+            if (ssdpPacket != null) {
+                scheduleExpiry(rootDev.getUDN(), ssdpPacket);
+            }
+        }
+
+        int devCnt = tree.size();
+
+        for (int n = 0; n < devCnt; n++) {
+            Device dev = tree.getDevice(n);
+
+            if (dev.hasUDN() == true) {
+                devices.put(dev.getUDN(), dev);
+            }
+        }
+    }
+
+    private static void flattenDevice(Device dev, DeviceList tree) {
+        tree.add(dev);
+
+        DeviceList childDevList = dev.getDeviceList();
+        int childDevCnt = childDevList.size();
+
+        for (int n = 0; n < childDevCnt; n++) {
+            flattenDevice(childDevList.getDevice(n), tree);
+        }
+    }
+
+    private void publishDeviceList(List<Device> devList) {
+        rootDevices = devList;
+        rootDeviceList = new ReadOnlyDeviceList(devList);
+        deviceListVersion++;
+    }
+
+    private void unindexDevices(DeviceList tree) {
+        int devCnt = tree.size();
+
+        for (int n = 0; n < devCnt; n++) {
+            Device dev = tree.getDevice(n);
+
+            devices.remove(dev.getUDN(), dev);
+        }
+    }
+
+    ////////////////////////////////////////////////
+    // Description fetching
+    ////////////////////////////////////////////////
+
+    /** Downloads the descriptions, so that the SSDP sockets never wait for them */
+    private ThreadPoolExecutor descriptionFetcher;
+
+    /**
+     * The LOCATIONs being downloaded, with the latest announcement pointing at
+     * each. Protected by synchronized (deviceTrees).
+     */
+    private final HashMap<String, SSDPPacket> pendingFetches =
+        new HashMap<String, SSDPPacket>();
+
+    private synchronized void startDescriptionFetcher() {
+        ThreadPoolExecutor fetcher = new ThreadPoolExecutor(MAX_DESCRIPTION_FETCHES,
+                MAX_DESCRIPTION_FETCHES, DESCRIPTION_FETCHER_KEEP_ALIVE, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_PENDING_DESCRIPTION_FETCHES),
+                newDaemonThreadFactory("UPnP description fetcher"));
 
-    private void addDevice(Node rootNode) {
-        devNodeList.add(rootNode);
+        fetcher.allowCoreThreadTimeOut(true);
+        descriptionFetcher = fetcher;
     }
 
-    private synchronized void addDevice(SSDPPacket ssdpPacket) {
-        if (ssdpPacket.isRootDevice() == false) {
+    private static ThreadFactory newDaemonThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private int count = 0;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + " " + (++count));
+
+                t.setDaemon(true);
+
+                return t;
+            }
+        };
+    }
+
+    private synchronized void stopDescriptionFetcher() {
+        if (descriptionFetcher != null) {
+            descriptionFetcher.shutdownNow();
+            descriptionFetcher = null;
+        }
+
+        synchronized (deviceTrees) {
+            pendingFetches.clear();
+        }
+    }
+
+    private synchronized ThreadPoolExecutor getDescriptionFetcher() {
+        return descriptionFetcher;
+    }
+
+    ////////////////////////////////////////////////
+    // SCPD prefetch
+    ////////////////////////////////////////////////
+    private volatile int scpdPrefetchParallelism = 0;
+
+    /**
+     * Downloads the SCPDs of every new device before telling the listeners
+     * about it, that many at once; 0, the default, leaves them to be
+     * downloaded when first needed.
+     */
+    public void setSCPDPrefetchParallelism(int parallelism) {
+        scpdPrefetchParallelism = parallelism;
+    }
+
+    public int getSCPDPrefetchParallelism() {
+        return scpdPrefetchParallelism;
+    }
+
+    /**
+     * Downloads the SCPDs of the services of that registered device tree.
+     * Blocking. The calling thread does its share of the work, so helpers the
+     * pool can't run right away are never waited for.
+     */
+    private void prefetchSCPDs(Device rootDev) {
+        int parallelism = scpdPrefetchParallelism;
+        DeviceList tree = deviceTrees.get(rootDev.getUDN());
+
+        if ((parallelism <= 0) || (tree == null)) {
             return;
         }
 
+        final ConcurrentLinkedQueue<Service> queue = new ConcurrentLinkedQueue<Service>();
+        int devCnt = tree.size();
+
+        for (int n = 0; n < devCnt; n++) {
+            ServiceList serviceList = tree.getDevice(n).getServiceList();
+            int serviceCnt = serviceList.size();
+
+            for (int i = 0; i < serviceCnt; i++) {
+                queue.add(serviceList.getService(i));
+            }
+        }
+
+        final CountDownLatch done = new CountDownLatch(queue.size());
+        Runnable worker = new Runnable() {
+            public void run() {
+                Service service;
+
+                while ((service = queue.poll()) != null) {
+                    try {
+                        service.loadSCPD();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }
+        };
+        ThreadPoolExecutor fetcher = getDescriptionFetcher();
+        int helpers = Math.min(parallelism, queue.size()) - 1;
+
+        for (int n = 0; (n < helpers) && (fetcher != null); n++) {
+            try {
+                fetcher.execute(worker);
+            } catch (RejectedExecutionException e) {
+                break;
+            }
+        }
+
+        worker.run();
+
+        try {
+            if (done.await(HTTP.DEFAULT_TIMEOUT, TimeUnit.SECONDS) == false) {
+                Debug.warning("Timed out downloading the SCPDs of " + rootDev.getFriendlyName());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    ////////////////////////////////////////////////
+    // Discovery filter
+    ////////////////////////////////////////////////
+    private volatile DiscoveryFilter discoveryFilter;
+
+    /**
+     * Only discovers the devices that filter accepts; null, the default,
+     * discovers every root device. Announcements which aren't accepted cost
+     * neither a download nor a parse.
+     */
+    public void setDiscoveryFilter(DiscoveryFilter filter) {
+        discoveryFilter = filter;
+    }
+
+    public DiscoveryFilter getDiscoveryFilter() {
+        return discoveryFilter;
+    }
+
+    private boolean isWantedDevice(SSDPPacket ssdpPacket) {
+        DiscoveryFilter filter = discoveryFilter;
+
+        if (filter == null) {
+            return ssdpPacket.isRootDevice();
+        }
+
+        return filter.isWantedDevice(ssdpPacket);
+    }
+
+    private void addDevice(SSDPPacket ssdpPacket) {
         String usn = ssdpPacket.getUSN();
         String udn = USN.getUDN(usn);
-        Device dev = getDevice(udn);
+        final String location = ssdpPacket.getLocation();
 
-        if (dev != null) {
-            dev.setSSDPPacket(ssdpPacket);
+        synchronized (deviceTrees) {
+            Device dev = devices.get(udn);
 
-            return;
+            if (dev != null) {
+                String oldLocation = dev.getLocation();
+
+                if ((oldLocation == null) || oldLocation.equals(location)) {
+                    dev.setSSDPPacket(ssdpPacket);
+
+                    if (deviceTrees.containsKey(udn) == true) {
+                        scheduleExpiry(udn, ssdpPacket);
+                    }
+
+                    return;
+                }
+
+                // The device has moved, e.g. it got a new address: its description
+                // may have changed too. It is replaced once we have the new one.
+            }
+
+            // Already being downloaded: it will come with the latest announcement
+            if (pendingFetches.put(location, ssdpPacket) != null) {
+                return;
+            }
         }
 
-        String location = ssdpPacket.getLocation();
+        ThreadPoolExecutor fetcher = getDescriptionFetcher();
 
         try {
-            URL locationUrl = new URL(location);
-            Parser parser = UPnP.getXMLParser();
-            Node rootNode = parser.parse(locationUrl);
-            Device rootDev = getDevice(rootNode);
+            if (fetcher == null) {
+                throw new RejectedExecutionException("Not started");
+            }
 
-            if (rootDev == null) {
-                return;
+            fetcher.execute(new Runnable() {
+                public void run() {
+                    fetchDescription(location);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (deviceTrees) {
+                pendingFetches.remove(location);
             }
 
-            rootDev.setSSDPPacket(ssdpPacket);
-            addDevice(rootNode);
-
-            // Thanks for Oliver Newell (2004/10/16)
-            // After node is added, invoke the AddDeviceListener to notify high-level
-            // control point application that a new device has been added. (The
-            // control point application must implement the DeviceChangeListener interface
-            // to receive the notifications)
-            performAddDeviceListener(rootDev);
+            ssdpPacketsDropped.incrementAndGet();
+            Debug.warning("Too many descriptions to download, ignoring " + location);
+        }
+    }
+
+    /**
+     * Downloads a description and registers the device. Blocking.
+     */
+    private void fetchDescription(String location) {
+        Device rootDev = null;
+        SSDPPacket announcement;
+
+        synchronized (deviceTrees) {
+            announcement = pendingFetches.get(location);
+        }
+
+        try {
+            URL locationUrl = new URL(location);
+            Node rootNode = (announcement == null)
+                            ? null
+                            : UPnP.getDescriptionCache().get(locationUrl,
+                                  announcement.getConfigId(), announcement.getBootId());
+
+            rootDev = getDevice(rootNode);
         } catch (MalformedURLException me) {
-            Debug.warning(ssdpPacket.toString());
+            ssdpPacketsDropped.incrementAndGet();
+            Debug.warning(location);
             Debug.warning(me);
         } catch (ParserException pe) {
-            Debug.warning(ssdpPacket.toString());
+            ssdpPacketsDropped.incrementAndGet();
+            Debug.warning(location);
             Debug.warning(pe);
         }
+
+        Device oldDev = null;
+
+        synchronized (deviceTrees) {
+            SSDPPacket ssdpPacket = pendingFetches.remove(location);
+
+            if ((rootDev == null) || (ssdpPacket == null)) {
+                return;
+            }
+
+            rootDev.setSSDPPacket(ssdpPacket);
+
+            Device dev = devices.get(rootDev.getUDN());
+
+            if (dev != null) {
+                oldDev = unregisterDevice(dev);
+            }
+
+            addDevice(rootDev);
+        }
+
+        if (oldDev != null) {
+            performRemoveDeviceListener(oldDev);
+        }
+
+        prefetchSCPDs(rootDev);
+
+        // Thanks for Oliver Newell (2004/10/16)
+        // After node is added, invoke the AddDeviceListener to notify high-level
+        // control point application that a new device has been added. (The
+        // control point application must implement the DeviceChangeListener interface
+        // to receive the notifications)
+        performAddDeviceListener(rootDev);
     }
 
     private Device getDevice(Node rootNode) {
@@ -241,43 +586,56 @@ public class ControlPoint implements HTTPRequestListener {
         return new Device(rootNode, devNode);
     }
 
+    /**
+     * @return the root devices, in the order they were found. That list is
+     *     read-only and shared; it doesn't change when devices are added or
+     *     removed later.
+     */
     public DeviceList getDeviceList() {
-        DeviceList devList = new DeviceList();
-        int nRoots = devNodeList.size();
-
-        for (int n = 0; n < nRoots; n++) {
-            Node rootNode = devNodeList.getNode(n);
-            Device dev = getDevice(rootNode);
+        return rootDeviceList;
+    }
 
-            if (dev == null) {
-                continue;
-            }
+    /**
+     * @return a number which changes whenever a root device is added or
+     *     removed. Read it before getDeviceList(): if it hasn't changed since
+     *     the last time, neither has the list.
+     */
+    public long getDeviceListVersion() {
+        return deviceListVersion;
+    }
 
-            devList.add(dev);
+    /**
+     * @param name the UDN or USN of a root or embedded device, or else its
+     *     friendly name or device type
+     */
+    public Device getDevice(String name) {
+        if (name == null) {
+            return null;
         }
 
-        return devList;
-    }
+        Device dev = devices.get(USN.getUDN(name));
 
-    public Device getDevice(String name) {
-        int nRoots = devNodeList.size();
+        if ((dev != null) || name.startsWith("uuid:")) {
+            return dev;
+        }
 
-        for (int n = 0; n < nRoots; n++) {
-            Node rootNode = devNodeList.getNode(n);
-            Device dev = getDevice(rootNode);
+        // Not a UDN: look for it the slow way
+        DeviceList devList = rootDeviceList;
+        int rootCnt = devList.size();
 
-            if (dev == null) {
-                continue;
-            }
+        for (int i = 0; i < rootCnt; i++) {
+            DeviceList tree = deviceTrees.get(devList.getDevice(i).getUDN());
 
-            if (dev.isDevice(name) == true) {
-                return dev;
+            if (tree == null) {
+                continue;
             }
 
-            Device cdev = dev.getDevice(name);
+            int devCnt = tree.size();
 
-            if (cdev != null) {
-                return cdev;
+            for (int n = 0; n < devCnt; n++) {
+                if (tree.getDevice(n).isDevice(name) == true) {
+                    return tree.getDevice(n);
+                }
             }
         }
 
@@ -288,19 +646,45 @@ public class ControlPoint implements HTTPRequestListener {
         return (getDevice(name) != null) ? true : false;
     }
 
-    private void removeDevice(Node rootNode) {
+    /**
+     * Removes the device tree that device belongs to from the registry,
+     * without telling the listeners.
+     *
+     * @return its root device, or null if it wasn't registered anymore
+     */
+    private Device unregisterDevice(Device dev) {
+        Node rootNode = dev.getRootNode();
 
-        // Thanks for Oliver Newell (2004/10/16)
-        // Invoke device removal listener prior to actual removal so Device node
-        // remains valid for the duration of the listener (application may want
-        // to access the node)
-        Device dev = getDevice(rootNode);
+        if (rootNode == null) {
+            return null;
+        }
+
+        Device rootDev = getDevice(rootNode);
 
-        if ((dev != null) && dev.isRootDevice()) {
-            performRemoveDeviceListener(dev);
+        if (rootDev == null) {
+            return null;
         }
 
-        devNodeList.remove(rootNode);
+        synchronized (deviceTrees) {
+            DeviceList tree = deviceTrees.get(rootDev.getUDN());
+
+            // It may have been replaced with a newer description already
+            if ((tree == null) || (tree.getDevice(0).getRootNode() != rootNode)) {
+                return null;
+            }
+
+            deviceTrees.remove(rootDev.getUDN());
+            cancelExpiry(rootDev.getUDN());
+            subscriptionRenewer.unsubscribed(tree.getDevice(0));
+
+            List<Device> devList = new ArrayList<Device>(rootDevices);
+
+            devList.remove(tree.getDevice(0));
+            unindexDevices(tree);
+            publishDeviceList(devList);
+
+            return tree.getDevice(0);
+        }
     }
 
     private void removeDevice(Device dev) {
@@ -308,7 +692,13 @@ public class ControlPoint implements HTTPRequestListener {
             return;
         }
 
-        removeDevice(dev.getRootNode());
+        Device rootDev = unregisterDevice(dev);
+
+        // The Device objects stay valid after their removal, so the listeners
+        // can still look at them
+        if (rootDev != null) {
+            performRemoveDeviceListener(rootDev);
+        }
     }
 
     private void removeDevice(String name) {
@@ -334,20 +724,123 @@ public class ControlPoint implements HTTPRequestListener {
     private Disposer deviceDisposer;
     private long expiredDeviceMonitoringInterval;
 
+    private static class Expiry implements Comparable<Expiry> {
+        final long deadline;
+        final String udn;
+
+        Expiry(long deadline, String udn) {
+            this.deadline = deadline;
+            this.udn = udn;
+        }
+
+        public int compareTo(Expiry other) {
+            if (deadline != other.deadline) {
+                return (deadline < other.deadline) ? -1 : 1;
+            }
+
+            return udn.compareTo(other.udn);
+        }
+    }
+
+    /**
+     * When each root device expires, earliest first, and the same by UDN.
+     * Protected by synchronized (expiryQueue), which the disposer waits on.
+     */
+    private final TreeSet<Expiry> expiryQueue = new TreeSet<Expiry>();
+    private final HashMap<String, Expiry> expiries = new HashMap<String, Expiry>();
+
+    /**
+     * Pushes the expiry of a root device back, according to an announcement
+     * we just got from it.
+     */
+    private void scheduleExpiry(String udn, SSDPPacket ssdpPacket) {
+        long leaseTime = ssdpPacket.getLeaseTime() + UPnP.DEFAULT_EXPIRED_DEVICE_EXTRA_TIME;
+        Expiry expiry = new Expiry(ssdpPacket.getTimeStamp() + (leaseTime * 1000), udn);
+
+        synchronized (expiryQueue) {
+            Expiry old = expiries.put(udn, expiry);
+
+            if (old != null) {
+                expiryQueue.remove(old);
+            }
+
+            expiryQueue.add(expiry);
+
+            // The disposer may be waiting for a later one
+            if (expiryQueue.first() == expiry) {
+                expiryQueue.notifyAll();
+            }
+        }
+    }
+
+    private void cancelExpiry(String udn) {
+        synchronized (expiryQueue) {
+            Expiry old = expiries.remove(udn);
+
+            if (old != null) {
+                expiryQueue.remove(old);
+            }
+        }
+    }
+
+    /**
+     * Waits until a device may have expired, but no longer than maxWait
+     * milliseconds.
+     */
+    public void waitForExpiredDevices(long maxWait) throws InterruptedException {
+        synchronized (expiryQueue) {
+            long wait = maxWait;
+
+            if (expiryQueue.isEmpty() == false) {
+                wait = Math.min(wait,
+                                expiryQueue.first().deadline - System.currentTimeMillis());
+            }
+
+            if (0 < wait) {
+                expiryQueue.wait(wait);
+            }
+        }
+    }
+
+    private void wakeUpDisposer() {
+        synchronized (expiryQueue) {
+            expiryQueue.notifyAll();
+        }
+    }
+
     public void removeExpiredDevices() {
-        DeviceList devList = getDeviceList();
-        int devCnt = devList.size();
-        Device dev[] = new Device[devCnt];
+        long now = System.currentTimeMillis();
+        List<Device> expired = new ArrayList<Device>();
 
-        for (int n = 0; n < devCnt; n++) {
-            dev[n] = devList.getDevice(n);
+        synchronized (expiryQueue) {
+            while ((expiryQueue.isEmpty() == false) && (expiryQueue.first().deadline <= now)) {
+                Expiry expiry = expiryQueue.first();
+
+                expiryQueue.remove(expiry);
+                expiries.remove(expiry.udn);
+
+                DeviceList tree = deviceTrees.get(expiry.udn);
+
+                if (tree != null) {
+                    expired.add(tree.getDevice(0));
+                }
+            }
         }
 
+        int devCnt = expired.size();
+
         for (int n = 0; n < devCnt; n++) {
-            if (dev[n].isExpired() == true) {
-                Debug.message("Expired device = " + dev[n].getFriendlyName());
-                removeDevice(dev[n]);
+            Device dev = expired.get(n);
+
+            // It may have announced itself since
+            synchronized (expiryQueue) {
+                if (expiries.containsKey(dev.getUDN()) == true) {
+                    continue;
+                }
             }
+
+            Debug.message("Expired device = " + dev.getFriendlyName());
+            removeDevice(dev);
         }
     }
 
@@ -368,50 +861,128 @@ public class ControlPoint implements HTTPRequestListener {
     }
 
     ////////////////////////////////////////////////
-    // Notify
+    // Listener dispatch
     ////////////////////////////////////////////////
-    private ListenerList deviceNotifyListenerList = new ListenerList();
 
-    public void addNotifyListener(NotifyListener listener) {
-        deviceNotifyListenerList.add(listener);
+    // Runs the listeners which asked to be called asynchronously. It lives as
+    // long as the control point: listeners may be added before start(). Its
+    // threads time out when idle; stop() stops the dispatchers instead
+    private final ThreadPoolExecutor listenerExecutor = newListenerExecutor();
+
+    private static ThreadPoolExecutor newListenerExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_LISTENER_THREADS,
+                MAX_LISTENER_THREADS, DESCRIPTION_FETCHER_KEEP_ALIVE, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                newDaemonThreadFactory("UPnP listener"));
+
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
     }
 
-    public void removeNotifyListener(NotifyListener listener) {
-        deviceNotifyListenerList.remove(listener);
+    private final ListenerDispatcher[] getListenerDispatchers() {
+        return new ListenerDispatcher[] {
+                   deviceNotifyListeners, deviceSearchResponseListeners,
+                   deviceChangeListeners, eventListeners
+               };
+    }
+
+    /**
+     * @return how many calls are waiting for the async listeners
+     */
+    public long getListenerQueueDepth() {
+        long depth = 0;
+
+        for (ListenerDispatcher dispatcher : getListenerDispatchers()) {
+            depth += dispatcher.getQueueDepth();
+        }
+
+        return depth;
     }
 
-    public void performNotifyListener(SSDPPacket ssdpPacket) {
-        int listenerSize = deviceNotifyListenerList.size();
+    /**
+     * @return how many listener calls have been slower than
+     *         ListenerDispatcher.DEFAULT_SLOW_CALL_THRESHOLD
+     */
+    public long getSlowListenerCalls() {
+        long count = 0;
+
+        for (ListenerDispatcher dispatcher : getListenerDispatchers()) {
+            count += dispatcher.getSlowCallCount();
+        }
+
+        return count;
+    }
 
-        for (int n = 0; n < listenerSize; n++) {
-            NotifyListener listener = (NotifyListener) deviceNotifyListenerList.get(n);
+    /**
+     * @return how many listener calls have thrown
+     */
+    public long getFailedListenerCalls() {
+        long count = 0;
 
-            listener.deviceNotifyReceived(ssdpPacket);
+        for (ListenerDispatcher dispatcher : getListenerDispatchers()) {
+            count += dispatcher.getFailedCallCount();
         }
+
+        return count;
+    }
+
+    ////////////////////////////////////////////////
+    // Notify
+    ////////////////////////////////////////////////
+    private final ListenerDispatcher deviceNotifyListeners =
+        new ListenerDispatcher("notify", listenerExecutor);
+
+    public void addNotifyListener(NotifyListener listener) {
+        addNotifyListener(listener, false);
+    }
+
+    /**
+     * @param isAsync whether to call it on another thread than the SSDP one
+     */
+    public void addNotifyListener(NotifyListener listener, boolean isAsync) {
+        deviceNotifyListeners.add(listener, isAsync);
+    }
+
+    public void removeNotifyListener(NotifyListener listener) {
+        deviceNotifyListeners.remove(listener);
+    }
+
+    public void performNotifyListener(final SSDPPacket ssdpPacket) {
+        deviceNotifyListeners.dispatch(new ListenerDispatcher.Call() {
+            public void deliver(Object listener) {
+                ((NotifyListener) listener).deviceNotifyReceived(ssdpPacket);
+            }
+        });
     }
 
     ////////////////////////////////////////////////
     // SearchResponse
     ////////////////////////////////////////////////
-    private ListenerList deviceSearchResponseListenerList = new ListenerList();
+    private final ListenerDispatcher deviceSearchResponseListeners =
+        new ListenerDispatcher("search response", listenerExecutor);
 
     public void addSearchResponseListener(SearchResponseListener listener) {
-        deviceSearchResponseListenerList.add(listener);
+        addSearchResponseListener(listener, false);
     }
 
-    public void removeSearchResponseListener(SearchResponseListener listener) {
-        deviceSearchResponseListenerList.remove(listener);
+    /**
+     * @param isAsync whether to call it on another thread than the SSDP one
+     */
+    public void addSearchResponseListener(SearchResponseListener listener, boolean isAsync) {
+        deviceSearchResponseListeners.add(listener, isAsync);
     }
 
-    public void performSearchResponseListener(SSDPPacket ssdpPacket) {
-        int listenerSize = deviceSearchResponseListenerList.size();
-
-        for (int n = 0; n < listenerSize; n++) {
-            SearchResponseListener listener =
-                (SearchResponseListener) deviceSearchResponseListenerList.get(n);
+    public void removeSearchResponseListener(SearchResponseListener listener) {
+        deviceSearchResponseListeners.remove(listener);
+    }
 
-            listener.deviceSearchResponseReceived(ssdpPacket);
-        }
+    public void performSearchResponseListener(final SSDPPacket ssdpPacket) {
+        deviceSearchResponseListeners.dispatch(new ListenerDispatcher.Call() {
+            public void deliver(Object listener) {
+                ((SearchResponseListener) listener).deviceSearchResponseReceived(ssdpPacket);
+            }
+        });
     }
 
     /////////////////////////////////////////////////////////////////////
@@ -420,41 +991,78 @@ public class ControlPoint implements HTTPRequestListener {
     // notified immediately when a device is added to, or removed from,
     // the control point.
     /////////////////////////////////////////////////////////////////////
-    ListenerList deviceChangeListenerList = new ListenerList();
+    private final ListenerDispatcher deviceChangeListeners =
+        new ListenerDispatcher("device change", listenerExecutor);
 
     public void addDeviceChangeListener(DeviceChangeListener listener) {
-        deviceChangeListenerList.add(listener);
+        addDeviceChangeListener(listener, false);
+    }
+
+    /**
+     * @param isAsync whether to call it on another thread than the one which
+     *        found out about the change; the changes are still delivered in
+     *        order
+     */
+    public void addDeviceChangeListener(DeviceChangeListener listener, boolean isAsync) {
+        deviceChangeListeners.add(listener, isAsync);
     }
 
     public void removeDeviceChangeListener(DeviceChangeListener listener) {
-        deviceChangeListenerList.remove(listener);
+        deviceChangeListeners.remove(listener);
+    }
+
+    public void performAddDeviceListener(final Device dev) {
+        deviceChangeListeners.dispatch(new ListenerDispatcher.Call() {
+            public void deliver(Object listener) {
+                ((DeviceChangeListener) listener).deviceAdded(dev);
+            }
+        });
     }
 
-    public void performAddDeviceListener(Device dev) {
-        int listenerSize = deviceChangeListenerList.size();
+    public void performRemoveDeviceListener(final Device dev) {
+        deviceChangeListeners.dispatch(new ListenerDispatcher.Call() {
+            public void deliver(Object listener) {
+                ((DeviceChangeListener) listener).deviceRemoved(dev);
+            }
+        });
+    }
 
-        for (int n = 0; n < listenerSize; n++) {
-            DeviceChangeListener listener = (DeviceChangeListener) deviceChangeListenerList.get(n);
+    ////////////////////////////////////////////////
+    // SSDPPacket
+    ////////////////////////////////////////////////
+    private final AtomicLong ssdpPacketsReceived = new AtomicLong();
+    private final AtomicLong ssdpPacketsFiltered = new AtomicLong();
+    private final AtomicLong ssdpPacketsDropped = new AtomicLong();
 
-            listener.deviceAdded(dev);
-        }
+    public long getSSDPPacketsReceived() {
+        return ssdpPacketsReceived.get();
     }
 
-    public void performRemoveDeviceListener(Device dev) {
-        int listenerSize = deviceChangeListenerList.size();
+    /**
+     * Packets about devices we aren't interested in: not a root device, or
+     * rejected by the discovery filter. Normal on any busy LAN.
+     */
+    public long getSSDPPacketsFiltered() {
+        return ssdpPacketsFiltered.get();
+    }
 
-        for (int n = 0; n < listenerSize; n++) {
-            DeviceChangeListener listener = (DeviceChangeListener) deviceChangeListenerList.get(n);
+    /**
+     * Packets we wanted but lost: the queues were full, or the description
+     * they point at couldn't be fetched or parsed.
+     */
+    public long getSSDPPacketsDropped() {
+        return ssdpPacketsDropped.get();
+    }
 
-            listener.deviceRemoved(dev);
-        }
+    public void packetDropped(SSDPPacket packet) {
+        ssdpPacketsReceived.incrementAndGet();
+        ssdpPacketsDropped.incrementAndGet();
     }
 
-    ////////////////////////////////////////////////
-    // SSDPPacket
-    ////////////////////////////////////////////////
     public void notifyReceived(SSDPPacket packet) {
-        if (packet.isRootDevice() == true) {
+        ssdpPacketsReceived.incrementAndGet();
+
+        if (isWantedDevice(packet) == true) {
             if (packet.isAlive() == true) {
                 addDevice(packet);
             }
@@ -462,14 +1070,25 @@ public class ControlPoint implements HTTPRequestListener {
             if (packet.isByeBye() == true) {
                 removeDevice(packet);
             }
+        } else if ((packet.isByeBye() == true) && (packet.isRootDevice() == true)) {
+
+            // The filter can't always tell what a root device is from that
+            // announcement, but it only removes devices we know
+            removeDevice(packet);
+        } else {
+            ssdpPacketsFiltered.incrementAndGet();
         }
 
         performNotifyListener(packet);
     }
 
     public void searchResponseReceived(SSDPPacket packet) {
-        if (packet.isRootDevice() == true) {
+        ssdpPacketsReceived.incrementAndGet();
+
+        if (isWantedDevice(packet) == true) {
             addDevice(packet);
+        } else {
+            ssdpPacketsFiltered.incrementAndGet();
         }
 
         performSearchResponseListener(packet);
@@ -490,10 +1109,8 @@ public class ControlPoint implements HTTPRequestListener {
 
     public void search(String target, int mx) {
         SSDPSearchRequest msReq = new SSDPSearchRequest(target, mx);
-        SSDPSearchResponseSocketList ssdpSearchResponseSocketList =
-            getSSDPSearchResponseSocketList();
 
-        ssdpSearchResponseSocketList.post(msReq);
+        getSSDPEngine().post(msReq);
     }
 
     public void search(String target) {
@@ -545,24 +1162,31 @@ public class ControlPoint implements HTTPRequestListener {
     ////////////////////////////////////////////////
     // Event Listener
     ////////////////////////////////////////////////
-    private ListenerList eventListenerList = new ListenerList();
+    private final ListenerDispatcher eventListeners =
+        new ListenerDispatcher("event", listenerExecutor);
 
     public void addEventListener(EventListener listener) {
-        eventListenerList.add(listener);
+        addEventListener(listener, false);
     }
 
-    public void removeEventListener(EventListener listener) {
-        eventListenerList.remove(listener);
+    /**
+     * @param isAsync whether to call it after the NOTIFY has been answered
+     */
+    public void addEventListener(EventListener listener, boolean isAsync) {
+        eventListeners.add(listener, isAsync);
     }
 
-    public void performEventListener(String uuid, long seq, String name, String value) {
-        int listenerSize = eventListenerList.size();
-
-        for (int n = 0; n < listenerSize; n++) {
-            EventListener listener = (EventListener) eventListenerList.get(n);
+    public void removeEventListener(EventListener listener) {
+        eventListeners.remove(listener);
+    }
 
-            listener.eventNotifyReceived(uuid, seq, name, value);
-        }
+    public void performEventListener(final String uuid, final long seq, final String name,
+                                     final String value) {
+        eventListeners.dispatch(new ListenerDispatcher.Call() {
+            public void deliver(Object listener) {
+                ((EventListener) listener).eventNotifyReceived(uuid, seq, name, value);
+            }
+        });
     }
 
     ////////////////////////////////////////////////
@@ -605,6 +1229,7 @@ public class ControlPoint implements HTTPRequestListener {
         if (subRes.isSuccessful() == true) {
             service.setSID(subRes.getSID());
             service.setTimeout(subRes.getTimeout());
+            subscriptionRenewer.subscribed(service, timeout);
 
             return true;
         }
@@ -636,6 +1261,7 @@ public class ControlPoint implements HTTPRequestListener {
         if (subRes.isSuccessful() == true) {
             service.setSID(subRes.getSID());
             service.setTimeout(subRes.getTimeout());
+            subscriptionRenewer.subscribed(service, timeout);
 
             return true;
         }
@@ -658,6 +1284,8 @@ public class ControlPoint implements HTTPRequestListener {
     }
 
     public boolean unsubscribe(Service service) {
+        subscriptionRenewer.unsubscribed(service);
+
         SubscriptionRequest subReq = new SubscriptionRequest();
 
         subReq.setUnsubscribeRequest(service);
@@ -775,12 +1403,30 @@ public class ControlPoint implements HTTPRequestListener {
     ////////////////////////////////////////////////
     // Subscriber
     ////////////////////////////////////////////////
+
+    // Renews each subscription at its own pace
+    private final SubscriptionRenewer subscriptionRenewer = new SubscriptionRenewer(this);
+
+    public SubscriptionRenewer getSubscriptionRenewer() {
+        return subscriptionRenewer;
+    }
+
+    @Deprecated
     private RenewSubscriber renewSubscriber;
 
+    /**
+     * @deprecated the subscriptions are renewed by getSubscriptionRenewer();
+     *     a RenewSubscriber set here is only stopped by stop()
+     */
+    @Deprecated
     public void setRenewSubscriber(RenewSubscriber sub) {
         renewSubscriber = sub;
     }
 
+    /**
+     * @deprecated see setRenewSubscriber()
+     */
+    @Deprecated
     public RenewSubscriber getRenewSubscriber() {
         return renewSubscriber;
     }
@@ -812,29 +1458,22 @@ public class ControlPoint implements HTTPRequestListener {
         httpServerList.addRequestListener(this);
         httpServerList.start();
 
-        ////////////////////////////////////////
-        // Notify Socket
-        ////////////////////////////////////////
-        SSDPNotifySocketList ssdpNotifySocketList = getSSDPNotifySocketList();
-
-        if (ssdpNotifySocketList.open() == false) {
-            return false;
+        for (ListenerDispatcher dispatcher : getListenerDispatchers()) {
+            dispatcher.start();
         }
 
-        ssdpNotifySocketList.setControlPoint(this);
-        ssdpNotifySocketList.start();
+        startDescriptionFetcher();
 
         ////////////////////////////////////////
-        // SeachResponse Socket
+        // SSDP (notify and search response)
         ////////////////////////////////////////
         int ssdpPort = getSSDPPort();
 
         retryCnt = 0;
 
-        SSDPSearchResponseSocketList ssdpSearchResponseSocketList =
-            getSSDPSearchResponseSocketList();
+        SSDPEngine ssdpEngine = getSSDPEngine();
 
-        while (ssdpSearchResponseSocketList.open(ssdpPort) == false) {
+        while (ssdpEngine.open(ssdpPort) == false) {
             retryCnt++;
 
             if (UPnP.SERVER_RETRY_COUNT < retryCnt) {
@@ -845,8 +1484,7 @@ public class ControlPoint implements HTTPRequestListener {
             ssdpPort = getSSDPPort();
         }
 
-        ssdpSearchResponseSocketList.setControlPoint(this);
-        ssdpSearchResponseSocketList.start();
+        ssdpEngine.start();
 
         ////////////////////////////////////////
         // search root devices
@@ -864,12 +1502,8 @@ public class ControlPoint implements HTTPRequestListener {
         ////////////////////////////////////////
         // Subscriber
         ////////////////////////////////////////
-        if (isNMPRMode() == true) {
-            RenewSubscriber renewSub = new RenewSubscriber(this);
-
-            setRenewSubscriber(renewSub);
-            renewSub.start();
-        }
+        subscriptionRenewer.start(new ScheduledThreadPoolExecutor(MAX_SUBSCRIPTION_RENEWALS,
+                newDaemonThreadFactory("UPnP subscription renewer")));
 
         return true;
     }
@@ -883,20 +1517,32 @@ public class ControlPoint implements HTTPRequestListener {
     }
 
     public boolean stop() {
-        unsubscribe();
+        return stop(DEFAULT_STOP_TIMEOUT).isEmpty();
+    }
+
+    /**
+     * Unsubscribes from all the services, and runs what addStopTasks() adds,
+     * all at once, then closes the sockets and stops the threads. The async
+     * listeners get their queued calls, and none after this returns.
+     * Whatever is still running after timeout milliseconds is abandoned.
+     *
+     * @return the descriptions of the requests which didn't complete in time
+     */
+    public List<String> stop(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        Map<String, Runnable> tasks = new LinkedHashMap<String, Runnable>();
+        DeviceList devList = getDeviceList();
+        int devCnt = devList.size();
 
-        SSDPNotifySocketList ssdpNotifySocketList = getSSDPNotifySocketList();
+        for (int n = 0; n < devCnt; n++) {
+            addUnsubscribeTasks(devList.getDevice(n), tasks);
+        }
 
-        ssdpNotifySocketList.stop();
-        ssdpNotifySocketList.close();
-        ssdpNotifySocketList.clear();
+        addStopTasks(tasks);
 
-        SSDPSearchResponseSocketList ssdpSearchResponseSocketList =
-            getSSDPSearchResponseSocketList();
+        List<String> unfinished = runStopTasks(tasks, deadline);
 
-        ssdpSearchResponseSocketList.stop();
-        ssdpSearchResponseSocketList.close();
-        ssdpSearchResponseSocketList.clear();
+        getSSDPEngine().close();
 
         HTTPServerList httpServerList = getHTTPServerList();
 
@@ -904,6 +1550,8 @@ public class ControlPoint implements HTTPRequestListener {
         httpServerList.close();
         httpServerList.clear();
 
+        stopDescriptionFetcher();
+
         ////////////////////////////////////////
         // Disposer
         ////////////////////////////////////////
@@ -912,19 +1560,121 @@ public class ControlPoint implements HTTPRequestListener {
         if (disposer != null) {
             disposer.stop();
             setDeviceDisposer(null);
+            wakeUpDisposer();
         }
 
         ////////////////////////////////////////
         // Subscriber
         ////////////////////////////////////////
-        RenewSubscriber renewSub = getRenewSubscriber();
+        subscriptionRenewer.stop();
 
-        if (renewSub != null) {
-            renewSub.stop();
-            setRenewSubscriber(null);
+        if (renewSubscriber != null) {
+            renewSubscriber.stop();
+            renewSubscriber = null;
         }
 
-        return true;
+        ////////////////////////////////////////
+        // Listeners
+        ////////////////////////////////////////
+        for (ListenerDispatcher dispatcher : getListenerDispatchers()) {
+            if (dispatcher.stop(deadline) == false) {
+                String name = "the " + dispatcher.getName() + " listener calls";
+
+                Debug.warning("Gave up on " + name + " while stopping");
+                unfinished.add(name);
+            }
+        }
+
+        return unfinished;
+    }
+
+    /**
+     * Lets a subclass send its own requests while stop() unsubscribes.
+     *
+     * @param tasks what stop() runs, keyed by a description for the logs
+     */
+    protected void addStopTasks(Map<String, Runnable> tasks) {}
+
+    private void addUnsubscribeTasks(Device dev, Map<String, Runnable> tasks) {
+        ServiceList serviceList = dev.getServiceList();
+        int serviceCnt = serviceList.size();
+
+        for (int n = 0; n < serviceCnt; n++) {
+            final Service service = serviceList.getService(n);
+
+            if (service.hasSID() == false) {
+                continue;
+            }
+
+            String name = "UNSUBSCRIBE " + service.getServiceID() + " of " + dev.getUDN();
+
+            tasks.put(name, new Runnable() {
+                public void run() {
+                    unsubscribe(service);
+                }
+            });
+        }
+
+        DeviceList childDevList = dev.getDeviceList();
+        int childDevCnt = childDevList.size();
+
+        for (int n = 0; n < childDevCnt; n++) {
+            addUnsubscribeTasks(childDevList.getDevice(n), tasks);
+        }
+    }
+
+    private static List<String> runStopTasks(Map<String, Runnable> tasks, long deadline) {
+        List<String> unfinished = new ArrayList<String>();
+
+        if (tasks.isEmpty()) {
+            return unfinished;
+        }
+
+        int threads = Math.min(tasks.size(), MAX_STOP_TASKS);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                newDaemonThreadFactory("UPnP stop"));
+        List<Callable<Object>> calls = new ArrayList<Callable<Object>>();
+
+        for (Runnable task : tasks.values()) {
+            calls.add(Executors.callable(task));
+        }
+
+        try {
+            long timeout = Math.max(deadline - System.currentTimeMillis(), 0);
+            List<Future<Object>> futures = executor.invokeAll(calls, timeout,
+                                               TimeUnit.MILLISECONDS);
+            int n = 0;
+
+            for (String name : tasks.keySet()) {
+                Future<Object> future = futures.get(n++);
+
+                if (future.isCancelled() == true) {
+                    unfinished.add(name);
+
+                    continue;
+                }
+
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Debug.warning(name + " has failed: " + e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            unfinished.addAll(tasks.keySet());
+            Thread.currentThread().interrupt();
+        } finally {
+
+            // The requests which are still running time out on their own
+            executor.shutdownNow();
+        }
+
+        for (String name : unfinished) {
+            Debug.warning("Gave up on " + name + " while stopping");
+        }
+
+        return unfinished;
     }
 
     ////////////////////////////////////////////////
@@ -0,0 +1,193 @@
+/******************************************************************
+*
+*   CyberUPnP for Java
+*
+*   File: DescriptionCache.java
+*
+*   Revision;
+*
+*   10/17/26
+*       - first revision.
+*
+******************************************************************/
+
+
+package plugins.UPnP.org.cybergarage.upnp;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import plugins.UPnP.org.cybergarage.http.*;
+import plugins.UPnP.org.cybergarage.xml.*;
+
+/**
+ * The device and service descriptions we have downloaded, by URL, so that a
+ * device announcing itself again doesn't cost a download.
+ *
+ * A description is trusted as is while the device announces the same
+ * CONFIGID.UPNP.ORG, which UPnP 1.1 devices change whenever their
+ * descriptions do, and hasn't restarted since (BOOTID.UPNP.ORG). Otherwise
+ * it is revalidated with If-None-Match and If-Modified-Since, and only
+ * downloaded and parsed again if it has changed.
+ *
+ * Only the bytes are kept: every get() parses a tree of its own, since the
+ * library attaches the state of the devices and services to their nodes.
+ */
+public class DescriptionCache {
+    private final static int DEFAULT_MAX_ENTRIES = 64;
+
+    private static class Entry {
+        final byte[] data;
+        final String etag;
+        final String lastModified;
+        final String configId;
+        final String bootId;
+
+        Entry(byte[] data, String etag, String lastModified, String configId, String bootId) {
+            this.data = data;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.configId = configId;
+            this.bootId = bootId;
+        }
+    }
+
+    ////////////////////////////////////////////////
+    // Member
+    ////////////////////////////////////////////////
+
+    /** Least recently used first. Protected by synchronized (this). */
+    private final LinkedHashMap<String, Entry> entries;
+
+    ////////////////////////////////////////////////
+    // Constructor
+    ////////////////////////////////////////////////
+    public DescriptionCache(final int maxEntries) {
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public DescriptionCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    ////////////////////////////////////////////////
+    // get
+    ////////////////////////////////////////////////
+
+    /**
+     * @param configId the CONFIGID.UPNP.ORG the device announced, null or
+     *     empty if none
+     * @param bootId the BOOTID.UPNP.ORG the device announced, null or empty if
+     *     none
+     * @return the description, freshly parsed. Blocking, unless it is known
+     *     to be unchanged.
+     */
+    public Node get(URL url, String configId, String bootId) throws ParserException {
+        String key = url.toString();
+        Entry entry;
+
+        configId = toNull(configId);
+        bootId = toNull(bootId);
+
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+
+        if ((entry != null) && (configId != null) && configId.equals(entry.configId) &&
+                ((bootId == null) || bootId.equals(entry.bootId))) {
+            return parse(entry.data);
+        }
+
+        HttpURLConnection urlCon = null;
+
+        try {
+            urlCon = (HttpURLConnection) url.openConnection();
+            urlCon.setRequestMethod("GET");
+
+            if (entry != null) {
+                if (entry.etag != null) {
+                    urlCon.setRequestProperty(HTTP.IF_NONE_MATCH, entry.etag);
+                }
+
+                if (entry.lastModified != null) {
+                    urlCon.setRequestProperty(HTTP.IF_MODIFIED_SINCE, entry.lastModified);
+                }
+            }
+
+            if ((entry != null) &&
+                    (urlCon.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED)) {
+                put(key, new Entry(entry.data, entry.etag, entry.lastModified, configId,
+                                   bootId));
+
+                return parse(entry.data);
+            }
+
+            InputStream urlIn = urlCon.getInputStream();
+            byte[] data;
+
+            try {
+                data = read(urlIn);
+            } finally {
+                urlIn.close();
+            }
+
+            // Don't keep what doesn't parse
+            Node node = parse(data);
+
+            put(key, new Entry(data, toNull(urlCon.getHeaderField(HTTP.ETAG)),
+                               toNull(urlCon.getHeaderField(HTTP.LAST_MODIFIED)), configId,
+                               bootId));
+
+            return node;
+        } catch (IOException e) {
+            throw new ParserException(e);
+        } catch (ClassCastException e) {
+
+            // Not an HTTP URL
+            throw new ParserException(e);
+        } finally {
+            if (urlCon != null) {
+                urlCon.disconnect();
+            }
+        }
+    }
+
+    public synchronized void remove(URL url) {
+        entries.remove(url.toString());
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        entries.put(key, entry);
+    }
+
+    private static Node parse(byte[] data) throws ParserException {
+        return UPnP.getXMLParser().parse(new ByteArrayInputStream(data));
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+
+        return out.toByteArray();
+    }
+
+    private static String toNull(String value) {
+        return ((value == null) || (value.length() == 0)) ? null : value;
+    }
+}
@@ -85,6 +85,10 @@
 *   04/25/05
 *       - Thanks for Mikael Hakman <mhakman@dkab.net>
 *       - Added a new setActionListener() and serQueryListner() to include the sub devices.
+*   10/17/26
+*       - Changed announce() and byebye() to send the NOTIFYs rendered once by
+*         AnnouncementPlan, as one paced burst per interface.
+*       - Added addDevice() and addService().
 *
 ******************************************************************/
 
@@ -145,6 +149,7 @@ public class Device
 
     public void setRootNode(Node node) {
         rootNode = node;
+        invalidateAnnouncementPlan();
     }
 
     public void setDeviceNode(Node node) {
@@ -329,6 +334,7 @@ public class Device
 
     private void setDescriptionURI(String uri) {
         getDeviceData().setDescriptionURI(uri);
+        invalidateAnnouncementPlan();
     }
 
     private String getDescriptionURI() {
@@ -475,6 +481,7 @@ public class Device
     ////////////////////////////////////////////////
     public void setLeaseTime(int value) {
         getDeviceData().setLeaseTime(value);
+        invalidateAnnouncementPlan();
 
         Advertiser adv = getAdvertiser();
 
@@ -571,6 +578,7 @@ public class Device
 
     public void setDeviceType(String value) {
         getDeviceNode().setNode(DEVICE_TYPE, value);
+        invalidateAnnouncementPlan();
     }
 
     public String getDeviceType() {
@@ -696,6 +704,7 @@ public class Device
 
     public void setUDN(String value) {
         getDeviceNode().setNode(UDN, value);
+        invalidateAnnouncementPlan();
     }
 
     public String getUDN() {
@@ -766,6 +775,18 @@ public class Device
         return devList;
     }
 
+    public void addDevice(Device dev) {
+        Node devListNode = getDeviceNode().getNode(DeviceList.ELEM_NAME);
+
+        if (devListNode == null) {
+            devListNode = new Node(DeviceList.ELEM_NAME);
+            getDeviceNode().addNode(devListNode);
+        }
+
+        devListNode.addNode(dev.getDeviceNode());
+        invalidateAnnouncementPlan();
+    }
+
     public boolean isDevice(String name) {
         if (name == null) {
             return false;
@@ -856,6 +877,18 @@ public class Device
         return serviceList;
     }
 
+    public void addService(Service service) {
+        Node serviceListNode = getDeviceNode().getNode(ServiceList.ELEM_NAME);
+
+        if (serviceListNode == null) {
+            serviceListNode = new Node(ServiceList.ELEM_NAME);
+            getDeviceNode().addNode(serviceListNode);
+        }
+
+        serviceListNode.addNode(service.getServiceNode());
+        invalidateAnnouncementPlan();
+    }
+
     public Service getService(String name) {
         ServiceList serviceList = getServiceList();
         int serviceCnt = serviceList.size();
@@ -1153,36 +1186,21 @@ public class Device
         TimerUtil.waitRandom(DEFAULT_DISCOVERY_WAIT_TIME);
     }
 
-    public void announce(String bindAddr) {
+    /**
+     * Appends the NOTIFYs of this device, its services and its children to
+     * reqs, in the order they are sent; HOST is left to the caller.
+     */
+    void getNotifyRequests(String bindAddr, String nts, List<SSDPNotifyRequest> reqs) {
         String devLocation = getLocationURL(bindAddr);
-        SSDPNotifySocket ssdpSock = new SSDPNotifySocket(bindAddr);
-        SSDPNotifyRequest ssdpReq = new SSDPNotifyRequest();
-
-        ssdpReq.setServer(UPnP.getServerName());
-        ssdpReq.setLeaseTime(getLeaseTime());
-        ssdpReq.setLocation(devLocation);
-        ssdpReq.setNTS(NTS.ALIVE);
 
         // uuid:device-UUID(::upnp:rootdevice)*
         if (isRootDevice() == true) {
-            String devNT = getNotifyDeviceNT();
-            String devUSN = getNotifyDeviceUSN();
-
-            ssdpReq.setNT(devNT);
-            ssdpReq.setUSN(devUSN);
-            ssdpSock.post(ssdpReq);
+            reqs.add(getNotifyRequest(nts, getNotifyDeviceNT(), getNotifyDeviceUSN(), devLocation));
         }
 
         // uuid:device-UUID::urn:schemas-upnp-org:device:deviceType:v
-        String devNT = getNotifyDeviceTypeNT();
-        String devUSN = getNotifyDeviceTypeUSN();
-
-        ssdpReq.setNT(devNT);
-        ssdpReq.setUSN(devUSN);
-        ssdpSock.post(ssdpReq);
-
-        // Thanks for Mikael Hakman (04/25/05)
-        ssdpSock.close();
+        reqs.add(getNotifyRequest(nts, getNotifyDeviceTypeNT(), getNotifyDeviceTypeUSN(),
+                                  devLocation));
 
         ServiceList serviceList = getServiceList();
         int serviceCnt = serviceList.size();
@@ -1190,7 +1208,7 @@ public class Device
         for (int n = 0; n < serviceCnt; n++) {
             Service service = serviceList.getService(n);
 
-            service.announce(bindAddr);
+            reqs.add(service.getNotifyRequest(bindAddr, nts));
         }
 
         DeviceList childDeviceList = getDeviceList();
@@ -1199,78 +1217,112 @@ public class Device
         for (int n = 0; n < childDeviceCnt; n++) {
             Device childDevice = childDeviceList.getDevice(n);
 
-            childDevice.announce(bindAddr);
+            childDevice.getNotifyRequests(bindAddr, nts, reqs);
         }
     }
 
-    public void announce() {
-        notifyWait();
+    private SSDPNotifyRequest getNotifyRequest(String nts, String nt, String usn,
+                                               String location) {
+        SSDPNotifyRequest ssdpReq = new SSDPNotifyRequest();
 
-        int nHostAddrs = HostInterface.getNHostAddresses();
+        if (NTS.isAlive(nts) == true) {
+            ssdpReq.setServer(UPnP.getServerName());
+            ssdpReq.setLeaseTime(getLeaseTime());
+            ssdpReq.setLocation(location);
+        }
 
-        for (int n = 0; n < nHostAddrs; n++) {
-            String bindAddr = HostInterface.getHostAddress(n);
+        ssdpReq.setNTS(nts);
+        ssdpReq.setNT(nt);
+        ssdpReq.setUSN(usn);
 
-            if ((bindAddr == null) || (bindAddr.length() <= 0)) {
-                continue;
-            }
+        return ssdpReq;
+    }
 
-            int ssdpCount = getSSDPAnnounceCount();
+    /**
+     * The NOTIFYs of this device tree, rendered on first use.
+     */
+    public AnnouncementPlan getAnnouncementPlan() {
+        DeviceData data = getDeviceData();
 
-            for (int i = 0; i < ssdpCount; i++) {
-                announce(bindAddr);
+        synchronized (data) {
+            AnnouncementPlan plan = data.getAnnouncementPlan();
+
+            if (plan == null) {
+                plan = new AnnouncementPlan(this);
+                data.setAnnouncementPlan(plan);
             }
+
+            return plan;
         }
     }
 
-    public void byebye(String bindAddr) {
-        SSDPNotifySocket ssdpSock = new SSDPNotifySocket(bindAddr);
-        SSDPNotifyRequest ssdpReq = new SSDPNotifyRequest();
+    /**
+     * To be called when something the NOTIFYs carry changes. The plans of
+     * the parents include this device, so they are invalidated as well.
+     * Loading another description needs nothing: the new nodes come with
+     * their own plans. Whoever edits the description nodes directly has to
+     * call it too.
+     */
+    void invalidateAnnouncementPlan() {
+        Node devNode = getDeviceNode();
 
-        ssdpReq.setNTS(NTS.BYEBYE);
+        // <device><deviceList><device>
+        while ((devNode != null) && (isDeviceNode(devNode) == true)) {
+            Object userData = devNode.getUserData();
 
-        // uuid:device-UUID(::upnp:rootdevice)*
-        if (isRootDevice() == true) {
-            String devNT = getNotifyDeviceNT();
-            String devUSN = getNotifyDeviceUSN();
+            if (userData instanceof DeviceData) {
+                AnnouncementPlan plan = ((DeviceData) userData).getAnnouncementPlan();
 
-            ssdpReq.setNT(devNT);
-            ssdpReq.setUSN(devUSN);
-            ssdpSock.post(ssdpReq);
+                if (plan != null) {
+                    plan.invalidate();
+                }
+            }
+
+            Node listNode = devNode.getParentNode();
+
+            devNode = (listNode != null) ? listNode.getParentNode() : null;
         }
+    }
 
-        // uuid:device-UUID::urn:schemas-upnp-org:device:deviceType:v
-        String devNT = getNotifyDeviceTypeNT();
-        String devUSN = getNotifyDeviceTypeUSN();
+    public void announce(String bindAddr) {
+        getAnnouncementPlan().announce(bindAddr);
+    }
 
-        ssdpReq.setNT(devNT);
-        ssdpReq.setUSN(devUSN);
-        ssdpSock.post(ssdpReq);
+    public void announce() {
+        notifyWait();
 
-        // Thanks for Mikael Hakman (04/25/05)
-        ssdpSock.close();
+        int nHostAddrs = HostInterface.getNHostAddresses();
+        List<String> bindAddrs = new ArrayList<String>();
 
-        ServiceList serviceList = getServiceList();
-        int serviceCnt = serviceList.size();
+        for (int n = 0; n < nHostAddrs; n++) {
+            String bindAddr = HostInterface.getHostAddress(n);
 
-        for (int n = 0; n < serviceCnt; n++) {
-            Service service = serviceList.getService(n);
+            if ((bindAddr == null) || (bindAddr.length() <= 0)) {
+                continue;
+            }
 
-            service.byebye(bindAddr);
+            bindAddrs.add(bindAddr);
         }
 
-        DeviceList childDeviceList = getDeviceList();
-        int childDeviceCnt = childDeviceList.size();
+        getAnnouncementPlan().retainAddresses(bindAddrs);
 
-        for (int n = 0; n < childDeviceCnt; n++) {
-            Device childDevice = childDeviceList.getDevice(n);
+        for (int n = 0; n < bindAddrs.size(); n++) {
+            String bindAddr = bindAddrs.get(n);
+            int ssdpCount = getSSDPAnnounceCount();
 
-            childDevice.byebye(bindAddr);
+            for (int i = 0; i < ssdpCount; i++) {
+                announce(bindAddr);
+            }
         }
     }
 
+    public void byebye(String bindAddr) {
+        getAnnouncementPlan().byebye(bindAddr);
+    }
+
     public void byebye() {
         int nHostAddrs = HostInterface.getNHostAddresses();
+        List<String> bindAddrs = new ArrayList<String>();
 
         for (int n = 0; n < nHostAddrs; n++) {
             String bindAddr = HostInterface.getHostAddress(n);
@@ -1279,6 +1331,13 @@ public class Device
                 continue;
             }
 
+            bindAddrs.add(bindAddr);
+        }
+
+        getAnnouncementPlan().retainAddresses(bindAddrs);
+
+        for (int n = 0; n < bindAddrs.size(); n++) {
+            String bindAddr = bindAddrs.get(n);
             int ssdpCount = getSSDPAnnounceCount();
 
             for (int i = 0; i < ssdpCount; i++) {
@@ -1311,7 +1370,7 @@ public class Device
 
         String remoteAddr = ssdpPacket.getRemoteAddress();
         int remotePort = ssdpPacket.getRemotePort();
-        SSDPSearchResponseSocket ssdpResSock = new SSDPSearchResponseSocket();
+        SSDPSender ssdpResSock = SSDPSender.acquire(localAddr);
 
         if (Debug.isOn() == true) {
             ssdpRes.print();
@@ -1319,8 +1378,12 @@ public class Device
 
         int ssdpCount = getSSDPAnnounceCount();
 
-        for (int i = 0; i < ssdpCount; i++) {
-            ssdpResSock.post(remoteAddr, remotePort, ssdpRes);
+        try {
+            for (int i = 0; i < ssdpCount; i++) {
+                ssdpResSock.post(remoteAddr, remotePort, ssdpRes);
+            }
+        } finally {
+            ssdpResSock.release();
         }
 
         return true;
@@ -1396,6 +1459,7 @@ public class Device
     ////////////////////////////////////////////////
     public void setHTTPPort(int port) {
         getDeviceData().setHTTPPort(port);
+        invalidateAnnouncementPlan();
     }
 
     public int getHTTPPort() {
@@ -1749,6 +1813,14 @@ public class Device
         return getDeviceData().getAdvertiser();
     }
 
+    private void setSSDPSenders(List<SSDPSender> senders) {
+        getDeviceData().setSSDPSenders(senders);
+    }
+
+    private List<SSDPSender> getSSDPSenders() {
+        return getDeviceData().getSSDPSenders();
+    }
+
     public boolean start() {
         stop(true);
 
@@ -1785,6 +1857,24 @@ public class Device
         ssdpSearchSockList.addSearchListener(this);
         ssdpSearchSockList.start();
 
+        ////////////////////////////////////////
+        // SSDP Senders
+        ////////////////////////////////////////
+        List<SSDPSender> senders = new ArrayList<SSDPSender>();
+        int nHostAddrs = HostInterface.getNHostAddresses();
+
+        for (int n = 0; n < nHostAddrs; n++) {
+            String bindAddr = HostInterface.getHostAddress(n);
+
+            if ((bindAddr == null) || (bindAddr.length() <= 0)) {
+                continue;
+            }
+
+            senders.add(SSDPSender.acquire(bindAddr));
+        }
+
+        setSSDPSenders(senders);
+
         ////////////////////////////////////////
         // Announce
         ////////////////////////////////////////
@@ -1825,6 +1915,16 @@ public class Device
             setAdvertiser(null);
         }
 
+        List<SSDPSender> senders = getSSDPSenders();
+
+        if (senders != null) {
+            for (int n = 0; n < senders.size(); n++) {
+                senders.get(n).release();
+            }
+
+            setSSDPSenders(null);
+        }
+
         return true;
     }
 
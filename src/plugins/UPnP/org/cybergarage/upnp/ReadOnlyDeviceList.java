@@ -0,0 +1,112 @@
+/******************************************************************
+*
+*   CyberUPnP for Java
+*
+*   File: ReadOnlyDeviceList.java
+*
+*   Revision;
+*
+*   10/17/26
+*       - first revision.
+*
+******************************************************************/
+
+
+package plugins.UPnP.org.cybergarage.upnp;
+
+import java.util.*;
+
+/**
+ * A DeviceList which is filled once and can't be modified afterwards: every
+ * mutator throws UnsupportedOperationException. Iterators, list iterators and
+ * sub lists go through these methods, so they can't modify it either.
+ */
+class ReadOnlyDeviceList extends DeviceList {
+    ////////////////////////////////////////////////
+    // Constants
+    ////////////////////////////////////////////////
+    private static final long serialVersionUID = 1L;
+
+    ////////////////////////////////////////////////
+    // Constructor
+    ////////////////////////////////////////////////
+    ReadOnlyDeviceList(List<Device> devList) {
+        elementData = devList.toArray();
+        elementCount = elementData.length;
+    }
+
+    ////////////////////////////////////////////////
+    // Mutators
+    ////////////////////////////////////////////////
+    public synchronized void setSize(int newSize) {
+        throw new UnsupportedOperationException();
+    }
+
+    public synchronized void setElementAt(Object obj, int index) {
+        throw new UnsupportedOperationException();
+    }
+
+    public synchronized void removeElementAt(int index) {
+        throw new UnsupportedOperationException();
+    }
+
+    public synchronized void insertElementAt(Object obj, int index) {
+        throw new UnsupportedOperationException();
+    }
+
+    public synchronized void addElement(Object obj) {
+        throw new UnsupportedOperationException();
+    }
+
+    public synchronized boolean removeElement(Object obj) {
+        throw new UnsupportedOperationException();
+    }
+
+    public synchronized void removeAllElements() {
+        throw new UnsupportedOperationException();
+    }
+
+    public synchronized Object set(int index, Object element) {
+        throw new UnsupportedOperationException();
+    }
+
+    public synchronized boolean add(Object o) {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean remove(Object o) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void add(int index, Object element) {
+        throw new UnsupportedOperationException();
+    }
+
+    public synchronized Object remove(int index) {
+        throw new UnsupportedOperationException();
+    }
+
+    public void clear() {
+        throw new UnsupportedOperationException();
+    }
+
+    public synchronized boolean addAll(Collection c) {
+        throw new UnsupportedOperationException();
+    }
+
+    public synchronized boolean removeAll(Collection c) {
+        throw new UnsupportedOperationException();
+    }
+
+    public synchronized boolean retainAll(Collection c) {
+        throw new UnsupportedOperationException();
+    }
+
+    public synchronized boolean addAll(int index, Collection c) {
+        throw new UnsupportedOperationException();
+    }
+
+    protected synchronized void removeRange(int fromIndex, int toIndex) {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -163,6 +163,7 @@ public class Service {
 
     public void setServiceType(String value) {
         getServiceNode().setNode(SERVICE_TYPE, value);
+        getDevice().invalidateAnnouncementPlan();
     }
 
     public String getServiceType() {
@@ -297,9 +298,19 @@ public class Service {
     }
 
     private Node getSCPDNode(URL scpdUrl) throws ParserException {
-        Parser parser = UPnP.getXMLParser();
 
-        return parser.parse(scpdUrl);
+        // The CONFIGID of the root device covers its SCPDs too
+        String configId = null;
+        String bootId = null;
+        Device rootDev = getRootDevice();
+        SSDPPacket packet = (rootDev == null) ? null : rootDev.getSSDPPacket();
+
+        if (packet != null) {
+            configId = packet.getConfigId();
+            bootId = packet.getBootId();
+        }
+
+        return UPnP.getDescriptionCache().get(scpdUrl, configId, bootId);
     }
 
     private Node getSCPDNode(File scpdFile) throws ParserException {
@@ -367,6 +378,16 @@ public class Service {
         return scpdNode;
     }
 
+    /**
+     * Downloads the SCPD now rather than when it is first needed, unless we
+     * have it already. Blocking.
+     *
+     * @return whether we have it
+     */
+    public boolean loadSCPD() {
+        return getSCPDNode() != null;
+    }
+
     public byte[] getSCPDData() {
         Node scpdNode = getSCPDNode();
 
@@ -544,44 +565,49 @@ public class Service {
         return getDevice().getUDN() + "::" + getServiceType();
     }
 
-    public void announce(String bindAddr) {
+    /**
+     * The NOTIFY of this service; HOST is left to the caller.
+     */
+    SSDPNotifyRequest getNotifyRequest(String bindAddr, String nts) {
 
         // uuid:device-UUID::urn:schemas-upnp-org:service:serviceType:v
-        Device rootDev = getRootDevice();
-        String devLocation = rootDev.getLocationURL(bindAddr);
-        String serviceNT = getNotifyServiceTypeNT();
-        String serviceUSN = getNotifyServiceTypeUSN();
-        Device dev = getDevice();
         SSDPNotifyRequest ssdpReq = new SSDPNotifyRequest();
 
-        ssdpReq.setServer(UPnP.getServerName());
-        ssdpReq.setLeaseTime(dev.getLeaseTime());
-        ssdpReq.setLocation(devLocation);
-        ssdpReq.setNTS(NTS.ALIVE);
-        ssdpReq.setNT(serviceNT);
-        ssdpReq.setUSN(serviceUSN);
+        if (NTS.isAlive(nts) == true) {
+            Device rootDev = getRootDevice();
+
+            ssdpReq.setServer(UPnP.getServerName());
+            ssdpReq.setLeaseTime(getDevice().getLeaseTime());
+            ssdpReq.setLocation(rootDev.getLocationURL(bindAddr));
+        }
 
-        SSDPNotifySocket ssdpSock = new SSDPNotifySocket(bindAddr);
+        ssdpReq.setNTS(nts);
+        ssdpReq.setNT(getNotifyServiceTypeNT());
+        ssdpReq.setUSN(getNotifyServiceTypeUSN());
 
-        Device.notifyWait();
-        ssdpSock.post(ssdpReq);
+        return ssdpReq;
     }
 
-    public void byebye(String bindAddr) {
-
-        // uuid:device-UUID::urn:schemas-upnp-org:service:serviceType:v
-        String devNT = getNotifyServiceTypeNT();
-        String devUSN = getNotifyServiceTypeUSN();
-        SSDPNotifyRequest ssdpReq = new SSDPNotifyRequest();
+    public void announce(String bindAddr) {
+        SSDPSender ssdpSock = SSDPSender.acquire(bindAddr);
 
-        ssdpReq.setNTS(NTS.BYEBYE);
-        ssdpReq.setNT(devNT);
-        ssdpReq.setUSN(devUSN);
+        try {
+            Device.notifyWait();
+            ssdpSock.post(getNotifyRequest(bindAddr, NTS.ALIVE));
+        } finally {
+            ssdpSock.release();
+        }
+    }
 
-        SSDPNotifySocket ssdpSock = new SSDPNotifySocket(bindAddr);
+    public void byebye(String bindAddr) {
+        SSDPSender ssdpSock = SSDPSender.acquire(bindAddr);
 
-        Device.notifyWait();
-        ssdpSock.post(ssdpReq);
+        try {
+            Device.notifyWait();
+            ssdpSock.post(getNotifyRequest(bindAddr, NTS.BYEBYE));
+        } finally {
+            ssdpSock.release();
+        }
     }
 
     public boolean serviceSearchResponse(SSDPPacket ssdpPacket) {
@@ -186,6 +186,15 @@ public class UPnP {
         return xmlParser;
     }
 
+    ////////////////////////////////////////////////
+    // Description Cache
+    ////////////////////////////////////////////////
+    private static final DescriptionCache descriptionCache = new DescriptionCache();
+
+    public final static DescriptionCache getDescriptionCache() {
+        return descriptionCache;
+    }
+
     ////////////////////////////////////////////////
     // Initialize
     ////////////////////////////////////////////////
@@ -19,6 +19,13 @@ package plugins.UPnP.org.cybergarage.upnp.control;
 import plugins.UPnP.org.cybergarage.util.*;
 import plugins.UPnP.org.cybergarage.upnp.*;
 
+/**
+ * Renews all the subscriptions of a control point every INTERVAL seconds.
+ *
+ * @deprecated ControlPoint renews each subscription according to its own
+ *             timeout, see SubscriptionRenewer
+ */
+@Deprecated
 public class RenewSubscriber extends ThreadCore {
     public final static long INTERVAL = 120;
 
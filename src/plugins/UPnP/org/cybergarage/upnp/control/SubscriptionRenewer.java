@@ -0,0 +1,271 @@
+/******************************************************************
+*
+*   CyberUPnP for Java
+*
+*   File: SubscriptionRenewer.java
+*
+*   Revision:
+*
+*   10/17/26
+*       - first revision.
+*
+******************************************************************/
+
+
+package plugins.UPnP.org.cybergarage.upnp.control;
+
+import plugins.UPnP.org.cybergarage.util.*;
+import plugins.UPnP.org.cybergarage.xml.*;
+import plugins.UPnP.org.cybergarage.upnp.*;
+
+import java.util.IdentityHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renews each subscription of a control point once a fraction of the
+ * lifetime the publisher granted it has gone by. A subscription which can't
+ * be renewed is replaced with a new one, retried with an exponential backoff
+ * until the service is unsubscribed from.
+ */
+public class SubscriptionRenewer {
+    /** Renew once that fraction of the granted lifetime has gone by */
+    public final static double RENEWAL_FRACTION = 0.5;
+
+    /** Don't renew more often than that, in seconds */
+    public final static long MIN_RENEWAL_INTERVAL = 15;
+
+    /** How often to renew infinite subscriptions, in seconds */
+    public final static long INFINITE_RENEWAL_INTERVAL = 1800;
+
+    /** The bounds of the backoff between two failed subscriptions, in seconds */
+    public final static long MIN_RETRY_DELAY = 15;
+    public final static long MAX_RETRY_DELAY = 960;
+
+    ////////////////////////////////////////////////
+    // Renewal
+    ////////////////////////////////////////////////
+    private static class Renewal {
+        final Service service;
+
+        /** What the subscriber asked for, in seconds */
+        final long timeout;
+
+        /** null once it has lapsed */
+        String sid;
+        int failures = 0;
+        ScheduledFuture<?> future;
+
+        Renewal(Service service, long timeout) {
+            this.service = service;
+            this.timeout = timeout;
+            this.sid = service.getSID();
+        }
+    }
+
+    ////////////////////////////////////////////////
+    // Member
+    ////////////////////////////////////////////////
+    private final ControlPoint ctrlPoint;
+
+    /** Protected by synchronized (this) */
+    private ScheduledExecutorService executor;
+
+    /**
+     * Keyed by the service node: Service objects are mere wrappers around
+     * them. Protected by synchronized (this)
+     */
+    private final IdentityHashMap<Node, Renewal> renewals =
+        new IdentityHashMap<Node, Renewal>();
+
+    /**
+     * The renewal the current thread is sending, so that subscribed() can
+     * tell its success from a new subscription
+     */
+    private final ThreadLocal<Renewal> renewing = new ThreadLocal<Renewal>();
+
+    ////////////////////////////////////////////////
+    // Constructor
+    ////////////////////////////////////////////////
+    public SubscriptionRenewer(ControlPoint ctrlp) {
+        ctrlPoint = ctrlp;
+    }
+
+    ////////////////////////////////////////////////
+    // start/stop
+    ////////////////////////////////////////////////
+
+    /**
+     * @param executor sends the renewals; the more threads it has, the more
+     *        of them may go out at once
+     */
+    public synchronized void start(ScheduledExecutorService executor) {
+        this.executor = executor;
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+
+        renewals.clear();
+    }
+
+    ////////////////////////////////////////////////
+    // Subscriptions
+    ////////////////////////////////////////////////
+
+    /**
+     * Called once service has been subscribed to, or its subscription renewed.
+     *
+     * @param timeout what the subscriber asked for, in seconds
+     */
+    public synchronized void subscribed(Service service, long timeout) {
+        Renewal current = renewing.get();
+
+        // Unsubscribed from while we were renewing it: renew() gives it back
+        if ((current != null) && (current.service.getServiceNode() == service.getServiceNode()) &&
+                (isCurrent(current) == false)) {
+            return;
+        }
+
+        Renewal renewal = new Renewal(service, timeout);
+        Renewal old = renewals.put(service.getServiceNode(), renewal);
+
+        if ((old != null) && (old.future != null)) {
+            old.future.cancel(false);
+        }
+
+        long granted = service.getTimeout();
+        long interval = (granted > 0) ? (long) (granted * RENEWAL_FRACTION)
+                                      : INFINITE_RENEWAL_INTERVAL;
+
+        schedule(renewal, Math.max(interval, MIN_RENEWAL_INTERVAL));
+    }
+
+    /**
+     * Stops renewing the subscription to service, if any.
+     */
+    public synchronized void unsubscribed(Service service) {
+        Renewal renewal = renewals.remove(service.getServiceNode());
+
+        if ((renewal != null) && (renewal.future != null)) {
+            renewal.future.cancel(false);
+        }
+    }
+
+    /**
+     * Stops renewing the subscriptions of a device and of its embedded
+     * devices.
+     */
+    public void unsubscribed(Device dev) {
+        ServiceList serviceList = dev.getServiceList();
+        int serviceCnt = serviceList.size();
+
+        for (int n = 0; n < serviceCnt; n++) {
+            unsubscribed(serviceList.getService(n));
+        }
+
+        DeviceList childDevList = dev.getDeviceList();
+        int childDevCnt = childDevList.size();
+
+        for (int n = 0; n < childDevCnt; n++) {
+            unsubscribed(childDevList.getDevice(n));
+        }
+    }
+
+    /**
+     * @return how many subscriptions are being looked after
+     */
+    public synchronized int size() {
+        return renewals.size();
+    }
+
+    ////////////////////////////////////////////////
+    // Renewal
+    ////////////////////////////////////////////////
+    private void schedule(final Renewal renewal, long delay) {
+        if (executor == null) {
+            return;
+        }
+
+        try {
+            renewal.future = executor.schedule(new Runnable() {
+                public void run() {
+                    renew(renewal);
+                }
+            }, delay, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+
+            // Stopping
+        }
+    }
+
+    private synchronized boolean isCurrent(Renewal renewal) {
+        return renewals.get(renewal.service.getServiceNode()) == renewal;
+    }
+
+    private void renew(Renewal renewal) {
+        if (isCurrent(renewal) == false) {
+            return;
+        }
+
+        Service service = renewal.service;
+        String sid = renewal.sid;
+        boolean isSubscribed = false;
+
+        // Both call subscribed() when they succeed, which schedules the next
+        // renewal unless the service has been unsubscribed from meanwhile
+        renewing.set(renewal);
+
+        try {
+            if ((sid != null) && sid.equals(service.getSID())) {
+                isSubscribed = ctrlPoint.subscribe(service, sid, renewal.timeout);
+
+                if (isSubscribed == false) {
+                    Debug.warning("Couldn't renew the subscription to " +
+                                  service.getServiceType() + ", subscribing again");
+                }
+            }
+
+            if ((isSubscribed == false) && (isCurrent(renewal) == true)) {
+                isSubscribed = ctrlPoint.subscribe(service, renewal.timeout);
+            }
+        } finally {
+            renewing.remove();
+        }
+
+        if (isSubscribed == true) {
+            synchronized (this) {
+                if (renewals.containsKey(service.getServiceNode()) == true) {
+                    return;
+                }
+            }
+
+            // Unsubscribed from while the request was in flight: don't keep
+            // what it got us
+            ctrlPoint.unsubscribe(service);
+
+            return;
+        }
+
+        synchronized (this) {
+            if (isCurrent(renewal) == false) {
+                return;
+            }
+
+            renewal.sid = null;
+            renewal.failures++;
+
+            long delay = MIN_RETRY_DELAY << Math.min(renewal.failures - 1, 16);
+
+            delay = Math.min(delay, MAX_RETRY_DELAY);
+            Debug.warning("Couldn't subscribe to " + service.getServiceType() +
+                          ", trying again in " + delay + " s");
+            schedule(renewal, delay);
+        }
+    }
+}
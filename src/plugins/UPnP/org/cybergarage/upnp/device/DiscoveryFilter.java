@@ -0,0 +1,27 @@
+/******************************************************************
+*
+*   CyberUPnP for Java
+*
+*   File: DiscoveryFilter.java
+*
+*   Revision;
+*
+*   10/17/26
+*       - first revision.
+*
+******************************************************************/
+
+
+package plugins.UPnP.org.cybergarage.upnp.device;
+
+import plugins.UPnP.org.cybergarage.upnp.ssdp.*;
+
+/**
+ * Tells the control point which devices are worth discovering, from the
+ * headers of their SSDP announcements (ST, NT, USN, SERVER...) alone. The
+ * description of a device is only downloaded once one of its announcements
+ * has been accepted.
+ */
+public interface DiscoveryFilter {
+    public boolean isWantedDevice(SSDPPacket ssdpPacket);
+}
@@ -48,10 +48,17 @@ public class Disposer extends ThreadCore {
         long monitorInterval = ctrlp.getExpiredDeviceMonitoringInterval() * 1000;
 
         while (isRunnable() == true) {
+
+            // Woken up as soon as the earliest device expires, or when an
+            // earlier one comes up
             try {
-                Thread.sleep(monitorInterval);
+                ctrlp.waitForExpiredDevices(monitorInterval);
             } catch (InterruptedException e) {}
 
+            if (isRunnable() == false) {
+                break;
+            }
+
             ctrlp.removeExpiredDevices();
 
             // ctrlp.print();
@@ -26,6 +26,7 @@
 package plugins.UPnP.org.cybergarage.upnp.ssdp;
 
 import java.net.*;
+import java.nio.ByteBuffer;
 
 import java.util.*;
 
@@ -40,6 +41,9 @@ public class HTTPMUSocket {
     private MulticastSocket ssdpMultiSock = null;
     private NetworkInterface ssdpMultiIf = null;
 
+    // Reused by every receive(): the packets are copied out of it
+    private byte ssdvRecvBuf[] = null;
+
     ////////////////////////////////////////////////
     // Constructor
     ////////////////////////////////////////////////
@@ -130,15 +134,23 @@ public class HTTPMUSocket {
     // send
     ////////////////////////////////////////////////
     public boolean send(String msg, String bindAddr, int bindPort) {
-        try {
-            MulticastSocket msock;
+        if ((bindAddr == null) || (bindPort <= 0)) {
+            String localAddr = (ssdpMultiIf != null) ? getLocalAddress() : "";
+
+            SSDPSender sender = SSDPSender.acquire(localAddr);
 
-            if ((bindAddr) != null && (0 < bindPort)) {
-                msock = new MulticastSocket(null);
-                msock.bind(new InetSocketAddress(bindAddr, bindPort));
-            } else {
-                msock = new MulticastSocket();
+            try {
+                return sender.send(msg, ssdpMultiGroup.getAddress(), ssdpMultiGroup.getPort());
+            } finally {
+                sender.release();
             }
+        }
+
+        // Only a caller which needs a given source port gets a socket of its own
+        try {
+            MulticastSocket msock = new MulticastSocket(null);
+
+            msock.bind(new InetSocketAddress(bindAddr, bindPort));
 
             DatagramPacket dgmPacket = new DatagramPacket(msg.getBytes(), msg.length(),
                                            ssdpMultiGroup);
@@ -175,19 +187,23 @@ public class HTTPMUSocket {
     // reveive
     ////////////////////////////////////////////////
     public SSDPPacket receive() {
-        byte ssdvRecvBuf[] = new byte[SSDP.RECV_MESSAGE_BUFSIZE];
-        SSDPPacket recvPacket = new SSDPPacket(ssdvRecvBuf, ssdvRecvBuf.length);
+        int bufSize = SSDP.getRecvBufferSize();
+
+        if ((ssdvRecvBuf == null) || (ssdvRecvBuf.length != bufSize)) {
+            ssdvRecvBuf = new byte[bufSize];
+        }
 
-        recvPacket.setLocalAddress(getLocalAddress());
+        DatagramPacket dgmPacket = new DatagramPacket(ssdvRecvBuf, ssdvRecvBuf.length);
 
         try {
-            ssdpMultiSock.receive(recvPacket.getDatagramPacket());
-            recvPacket.setTimeStamp(System.currentTimeMillis());
+            ssdpMultiSock.receive(dgmPacket);
+
+            return SSDP.createPacket(ByteBuffer.wrap(ssdvRecvBuf, 0, dgmPacket.getLength()),
+                                     dgmPacket.getSocketAddress(), getLocalAddress());
         } catch (Exception e) {
 
             // Debug.warning(e);
+            return null;
         }
-
-        return recvPacket;
     }
 }
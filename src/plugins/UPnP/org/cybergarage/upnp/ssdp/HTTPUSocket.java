@@ -25,6 +25,7 @@
 package plugins.UPnP.org.cybergarage.upnp.ssdp;
 
 import java.net.*;
+import java.nio.ByteBuffer;
 
 import plugins.UPnP.org.cybergarage.util.*;
 
@@ -34,6 +35,9 @@ public class HTTPUSocket {
     ////////////////////////////////////////////////
     private DatagramSocket ssdpUniSock = null;
 
+    // Reused by every receive(): the packets are copied out of it
+    private byte ssdvRecvBuf[] = null;
+
     // private MulticastSocket ssdpUniSock = null;
     public DatagramSocket getDatagramSocket() {
         return ssdpUniSock;
@@ -183,21 +187,24 @@ public class HTTPUSocket {
     // receive
     ////////////////////////////////////////////////
     public SSDPPacket receive() {
-        byte ssdvRecvBuf[] = new byte[SSDP.RECV_MESSAGE_BUFSIZE];
-        SSDPPacket recvPacket = new SSDPPacket(ssdvRecvBuf, ssdvRecvBuf.length);
+        int bufSize = SSDP.getRecvBufferSize();
+
+        if ((ssdvRecvBuf == null) || (ssdvRecvBuf.length != bufSize)) {
+            ssdvRecvBuf = new byte[bufSize];
+        }
 
-        recvPacket.setLocalAddress(getLocalAddress());
+        DatagramPacket dgmPacket = new DatagramPacket(ssdvRecvBuf, ssdvRecvBuf.length);
 
         try {
-            ssdpUniSock.receive(recvPacket.getDatagramPacket());
-            recvPacket.setTimeStamp(System.currentTimeMillis());
+            ssdpUniSock.receive(dgmPacket);
+
+            return SSDP.createPacket(ByteBuffer.wrap(ssdvRecvBuf, 0, dgmPacket.getLength()),
+                                     dgmPacket.getSocketAddress(), getLocalAddress());
         } catch (Exception e) {
 
             // Debug.warning(e);
             return null;
         }
-
-        return recvPacket;
     }
 
     ////////////////////////////////////////////////
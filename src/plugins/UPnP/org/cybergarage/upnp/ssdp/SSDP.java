@@ -12,12 +12,20 @@
 *       - first revision.
 *   05/13/03
 *       - Added constants for IPv6.
+*   10/17/26
+*       - Added the receive buffer size and the truncated packet count.
 *
 ******************************************************************/
 
 
 package plugins.UPnP.org.cybergarage.upnp.ssdp;
 
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import plugins.UPnP.org.cybergarage.util.*;
+
 public class SSDP {
     ////////////////////////////////////////////////
     // Constants
@@ -40,8 +48,13 @@ public class SSDP {
     }
 
     public static final int DEFAULT_MSEARCH_MX = 3;
+
+    /** @deprecated too small for UPnP 1.1 devices, see setRecvBufferSize() */
+    @Deprecated
     public static final int RECV_MESSAGE_BUFSIZE = 1024;
 
+    public static final int DEFAULT_RECV_BUFFER_SIZE = 8192;
+
     ////////////////////////////////////////////////
     // Initialize
     ////////////////////////////////////////////////
@@ -49,6 +62,67 @@ public class SSDP {
         setIPv6Address(IPV6_LINK_LOCAL_ADDRESS);
     }
 
+    ////////////////////////////////////////////////
+    // Receive buffers
+    ////////////////////////////////////////////////
+    private static volatile int recvBufferSize = DEFAULT_RECV_BUFFER_SIZE;
+    private static volatile boolean isRecvBufferDirect = false;
+    private static final AtomicLong truncatedPackets = new AtomicLong();
+
+    /**
+     * Sets the size of the buffers the packets are received into; a packet
+     * which doesn't fit is truncated. Each socket, and the selector thread
+     * of SSDPEngine, keeps one such buffer. Direct buffers are only used by
+     * SSDPEngine: DatagramSockets receive into an array.
+     */
+    public static final void setRecvBufferSize(int bufferSize, boolean isDirect) {
+        recvBufferSize = bufferSize;
+        isRecvBufferDirect = isDirect;
+    }
+
+    public static final int getRecvBufferSize() {
+        return recvBufferSize;
+    }
+
+    public static final boolean isRecvBufferDirect() {
+        return isRecvBufferDirect;
+    }
+
+    /**
+     * @return how many packets didn't fit in their receive buffer
+     */
+    public static final long getTruncatedPacketCount() {
+        return truncatedPackets.get();
+    }
+
+    /**
+     * Copies a datagram out of its receive buffer, so that the buffer can be
+     * reused at once: the packet lives as long as the device it announces.
+     *
+     * @param buf the buffer it was received into, flipped; a datagram
+     *        filling it up has probably been truncated
+     */
+    static final SSDPPacket createPacket(ByteBuffer buf, SocketAddress from, String localAddr) {
+        int length = buf.remaining();
+        byte[] copy = new byte[length];
+
+        buf.get(copy);
+
+        SSDPPacket packet = new SSDPPacket(copy, length);
+
+        packet.getDatagramPacket().setSocketAddress(from);
+        packet.setLocalAddress(localAddr);
+        packet.setTimeStamp(System.currentTimeMillis());
+
+        if (buf.capacity() <= length) {
+            truncatedPackets.incrementAndGet();
+            Debug.warning("Truncated an SSDP packet of " + packet.getRemoteAddress() +
+                          " to " + length + " bytes");
+        }
+
+        return packet;
+    }
+
     ////////////////////////////////////////////////
     // LeaseTime
     ////////////////////////////////////////////////
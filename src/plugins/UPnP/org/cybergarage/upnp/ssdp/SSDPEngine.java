@@ -0,0 +1,495 @@
+/******************************************************************
+*
+*   CyberUPnP for Java
+*
+*   File: SSDPEngine.java
+*
+*   Revision:
+*
+*   10/17/26
+*       - first revision.
+*
+******************************************************************/
+
+
+package plugins.UPnP.org.cybergarage.upnp.ssdp;
+
+import plugins.UPnP.org.cybergarage.net.*;
+import plugins.UPnP.org.cybergarage.util.*;
+import plugins.UPnP.org.cybergarage.upnp.*;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The SSDP sockets of a control point, all served by a single thread.
+ *
+ * The announcements of all the interfaces are received on one multicast
+ * channel per address family, and the search responses on one unicast
+ * channel per host address, which also sends the M-SEARCHes out of its
+ * interface. What is received is handed over to the control point by
+ * another thread, through a bounded queue: when the control point can't
+ * keep up, packets are dropped rather than left in the socket buffers.
+ */
+public class SSDPEngine implements Runnable {
+    /** Packets received but not handed over yet; past that they are dropped */
+    public final static int MAX_PENDING_PACKETS = 256;
+
+    // Thanks for Tho Beisch (11/09/04)
+    private final static int MULTICAST_TTL = 4;
+
+    ////////////////////////////////////////////////
+    // Endpoint
+    ////////////////////////////////////////////////
+    private static class Endpoint {
+        final DatagramChannel channel;
+        final InetAddress group;
+        final boolean isMulticast;
+
+        /** The address a unicast channel is bound to */
+        final String localAddr;
+
+        /** The interfaces a multicast channel has joined the group on */
+        final List<NetworkInterface> interfaces = new ArrayList<NetworkInterface>();
+
+        Endpoint(DatagramChannel channel, InetAddress group, boolean isMulticast,
+                 String localAddr) {
+            this.channel = channel;
+            this.group = group;
+            this.isMulticast = isMulticast;
+            this.localAddr = localAddr;
+        }
+
+        /**
+         * @return our address on the link the packet came from
+         */
+        String getLocalAddress(InetAddress remote) {
+            if (isMulticast == false) {
+                return localAddr;
+            }
+
+            String fallback = "";
+
+            for (NetworkInterface ni : interfaces) {
+                for (InterfaceAddress ifAddr : ni.getInterfaceAddresses()) {
+                    InetAddress addr = ifAddr.getAddress();
+
+                    if (addr.getClass() != group.getClass()) {
+                        continue;
+                    }
+
+                    if (isSameNetwork(addr, remote, ifAddr.getNetworkPrefixLength())) {
+                        return addr.getHostAddress();
+                    }
+
+                    if (fallback.length() == 0) {
+                        fallback = addr.getHostAddress();
+                    }
+                }
+            }
+
+            return fallback;
+        }
+    }
+
+    private static class Received {
+        final Endpoint endpoint;
+        final SSDPPacket packet;
+
+        Received(Endpoint endpoint, SSDPPacket packet) {
+            this.endpoint = endpoint;
+            this.packet = packet;
+        }
+    }
+
+    private static boolean isSameNetwork(InetAddress a, InetAddress b, int prefixLength) {
+        byte[] x = a.getAddress();
+        byte[] y = b.getAddress();
+
+        if ((x.length != y.length) || (prefixLength < 0)) {
+            return false;
+        }
+
+        for (int bit = 0; bit < Math.min(prefixLength, x.length * 8); bit++) {
+            int mask = 0x80 >> (bit % 8);
+
+            if ((x[bit / 8] & mask) != (y[bit / 8] & mask)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    ////////////////////////////////////////////////
+    // Member
+    ////////////////////////////////////////////////
+    private final ControlPoint ctrlPoint;
+    private Selector selector = null;
+    private final List<Endpoint> endpoints = new ArrayList<Endpoint>();
+    private final LinkedBlockingQueue<Received> received =
+        new LinkedBlockingQueue<Received>(MAX_PENDING_PACKETS);
+    private volatile Thread selectorThread = null;
+    private volatile Thread dispatcherThread = null;
+
+    /** Only used by the selector thread: the packets are copied out of it */
+    private ByteBuffer recvBuf = null;
+
+    ////////////////////////////////////////////////
+    // Constructor
+    ////////////////////////////////////////////////
+    public SSDPEngine(ControlPoint ctrlp) {
+        ctrlPoint = ctrlp;
+    }
+
+    ////////////////////////////////////////////////
+    // open/close
+    ////////////////////////////////////////////////
+
+    /**
+     * Joins the SSDP group on every interface, and binds a unicast channel
+     * to port on every host address.
+     *
+     * @return false if a unicast channel couldn't be bound
+     */
+    public synchronized boolean open(int port) {
+        close();
+
+        try {
+            selector = Selector.open();
+
+            int nHostAddrs = HostInterface.getNHostAddresses();
+
+            for (int n = 0; n < nHostAddrs; n++) {
+                String bindAddr = HostInterface.getHostAddress(n);
+                InetAddress addr = InetAddress.getByName(bindAddr);
+                NetworkInterface ni = NetworkInterface.getByInetAddress(addr);
+
+                joinGroup(addr, ni);
+                openUnicast(bindAddr, addr, ni, port);
+            }
+        } catch (IOException e) {
+            Debug.warning(e);
+            close();
+
+            return false;
+        }
+
+        return true;
+    }
+
+    private static InetAddress getGroup(InetAddress addr) throws UnknownHostException {
+        return InetAddress.getByName((addr instanceof Inet6Address) ? SSDP.getIPv6Address()
+                                                                    : SSDP.ADDRESS);
+    }
+
+    private static ProtocolFamily getFamily(InetAddress addr) {
+        return (addr instanceof Inet6Address) ? StandardProtocolFamily.INET6
+                                              : StandardProtocolFamily.INET;
+    }
+
+    private void joinGroup(InetAddress addr, NetworkInterface ni) throws IOException {
+        if (ni == null) {
+            return;
+        }
+
+        InetAddress group = getGroup(addr);
+        Endpoint endpoint = null;
+
+        for (Endpoint e : endpoints) {
+            if ((e.isMulticast == true) && e.group.equals(group)) {
+                endpoint = e;
+            }
+        }
+
+        if (endpoint == null) {
+            DatagramChannel channel = DatagramChannel.open(getFamily(addr));
+
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(new InetSocketAddress(SSDP.PORT));
+            channel.configureBlocking(false);
+            endpoint = new Endpoint(channel, group, true, null);
+            register(endpoint);
+        }
+
+        // An interface may have several addresses
+        if (endpoint.interfaces.contains(ni) == true) {
+            return;
+        }
+
+        try {
+            endpoint.channel.join(group, ni);
+            endpoint.interfaces.add(ni);
+        } catch (IOException e) {
+
+            // Not all interfaces can do multicast: we just won't hear from them
+            Debug.warning("Couldn't join " + group + " on " + ni.getName() + ": " + e);
+        }
+    }
+
+    private void openUnicast(String bindAddr, InetAddress addr, NetworkInterface ni, int port)
+            throws IOException {
+        DatagramChannel channel = DatagramChannel.open(getFamily(addr));
+        Endpoint endpoint = new Endpoint(channel, getGroup(addr), false, bindAddr);
+
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(new InetSocketAddress(addr, port));
+
+            if (ni != null) {
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, ni);
+            }
+
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, MULTICAST_TTL);
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            channel.close();
+
+            throw e;
+        }
+
+        register(endpoint);
+    }
+
+    private void register(Endpoint endpoint) throws IOException {
+        endpoints.add(endpoint);
+        endpoint.channel.register(selector, SelectionKey.OP_READ, endpoint);
+    }
+
+    public synchronized void close() {
+        stop();
+
+        if (selector != null) {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Debug.warning(e);
+            }
+
+            selector = null;
+        }
+
+        for (Endpoint endpoint : endpoints) {
+            try {
+                endpoint.channel.close();
+            } catch (IOException e) {
+                Debug.warning(e);
+            }
+        }
+
+        endpoints.clear();
+        received.clear();
+    }
+
+    ////////////////////////////////////////////////
+    // start/stop
+    ////////////////////////////////////////////////
+    public synchronized void start() {
+        if ((selector == null) || (selectorThread != null)) {
+            return;
+        }
+
+        selectorThread = new Thread(this, "UPnP-SSDPEngine");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+        dispatcherThread = new Thread(new Runnable() {
+            public void run() {
+                dispatch();
+            }
+        }, "UPnP-SSDPEngine dispatcher");
+        dispatcherThread.setDaemon(true);
+        dispatcherThread.start();
+    }
+
+    public synchronized void stop() {
+        Thread dispatcher = dispatcherThread;
+
+        selectorThread = null;
+        dispatcherThread = null;
+
+        if (selector != null) {
+            selector.wakeup();
+        }
+
+        if (dispatcher != null) {
+            dispatcher.interrupt();
+        }
+    }
+
+    ////////////////////////////////////////////////
+    // run
+    ////////////////////////////////////////////////
+    public void run() {
+        Thread thisThread = Thread.currentThread();
+        Selector sel;
+
+        synchronized (this) {
+            sel = selector;
+        }
+
+        while (selectorThread == thisThread) {
+            try {
+                sel.select();
+            } catch (IOException e) {
+                Debug.warning(e);
+
+                break;
+            } catch (ClosedSelectorException e) {
+                break;
+            }
+
+            Iterator<SelectionKey> it;
+
+            try {
+                it = sel.selectedKeys().iterator();
+            } catch (ClosedSelectorException e) {
+                break;
+            }
+
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+
+                it.remove();
+
+                if (key.isValid() == true) {
+                    receive((Endpoint) key.attachment());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads all the datagrams waiting on that channel.
+     */
+    private void receive(Endpoint endpoint) {
+        int bufSize = SSDP.getRecvBufferSize();
+        boolean isDirect = SSDP.isRecvBufferDirect();
+
+        if ((recvBuf == null) || (recvBuf.capacity() != bufSize) ||
+                (recvBuf.isDirect() != isDirect)) {
+            recvBuf = isDirect ? ByteBuffer.allocateDirect(bufSize)
+                               : ByteBuffer.allocate(bufSize);
+        }
+
+        while (true) {
+            SocketAddress from;
+
+            recvBuf.clear();
+
+            try {
+                from = endpoint.channel.receive(recvBuf);
+            } catch (IOException e) {
+                return;
+            }
+
+            if (from == null) {
+                return;
+            }
+
+            InetSocketAddress remote = (InetSocketAddress) from;
+
+            recvBuf.flip();
+
+            SSDPPacket packet = SSDP.createPacket(recvBuf, remote,
+                                    endpoint.getLocalAddress(remote.getAddress()));
+
+            if (received.offer(new Received(endpoint, packet)) == false) {
+                ctrlPoint.packetDropped(packet);
+            }
+        }
+    }
+
+    /**
+     * Hands the packets over to the control point.
+     */
+    private void dispatch() {
+        Thread thisThread = Thread.currentThread();
+
+        while (dispatcherThread == thisThread) {
+            Received r;
+
+            try {
+                r = received.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            try {
+                if (r.endpoint.isMulticast == false) {
+                    ctrlPoint.searchResponseReceived(r.packet);
+
+                    continue;
+                }
+
+                // Thanks for Inma (02/20/04)
+                InetAddress pmaddr = r.packet.getHostInetAddress();
+
+                if (r.endpoint.group.equals(pmaddr) == false) {
+                    Debug.warning("Invalidate Multicast Recieved : " + r.endpoint.group + "," +
+                                  pmaddr);
+                    ctrlPoint.packetDropped(r.packet);
+
+                    continue;
+                }
+
+                ctrlPoint.notifyReceived(r.packet);
+            } catch (RuntimeException e) {
+                Debug.warning(e);
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////
+    // post
+    ////////////////////////////////////////////////
+
+    /**
+     * Multicasts an M-SEARCH out of every interface.
+     *
+     * @return false if it couldn't be sent on some of them
+     */
+    public boolean post(SSDPSearchRequest req) {
+        List<Endpoint> unicast = new ArrayList<Endpoint>();
+
+        synchronized (this) {
+            for (Endpoint endpoint : endpoints) {
+                if (endpoint.isMulticast == false) {
+                    unicast.add(endpoint);
+                }
+            }
+        }
+
+        boolean ret = true;
+
+        for (Endpoint endpoint : unicast) {
+            byte[] msg;
+
+            synchronized (req) {
+                req.setLocalAddress(endpoint.localAddr);
+                msg = req.toString().getBytes();
+            }
+
+            try {
+                InetSocketAddress to = new InetSocketAddress(endpoint.group, SSDP.PORT);
+
+                if (endpoint.channel.send(ByteBuffer.wrap(msg), to) == 0) {
+                    ret = false;
+                }
+            } catch (IOException e) {
+                Debug.warning("Couldn't send an M-SEARCH from " + endpoint.localAddr + ": " + e);
+                ret = false;
+            }
+        }
+
+        return ret;
+    }
+}
@@ -106,6 +106,10 @@ public class SSDPNotifySocket extends HTTPMUSocket implements Runnable {
             if (maddr.equals(pmaddr) == false) {
                 Debug.warning("Invalidate Multicast Recieved : " + maddr + "," + pmaddr);
 
+                if (ctrlPoint != null) {
+                    ctrlPoint.packetDropped(packet);
+                }
+
                 continue;
             }
 
@@ -18,6 +18,8 @@
 *   11/19/04
 *       - Theo Beisch <theo.beisch@gmx.de>
 *       - Changed getRemoteAddress() to return the adresss instead of the host name.
+*   10/17/26
+*       - Changed the header getters to use an index built in a single pass.
 *
 ******************************************************************/
 
@@ -100,55 +102,256 @@ public class SSDPPacket {
         }
 
         DatagramPacket packet = getDatagramPacket();
+        byte[] data = packet.getData();
         int packetLen = packet.getLength();
-        String packetData = new String(packet.getData(), 0, packetLen);
 
-        packetBytes = packetData.getBytes();
+        // The packets SSDP.createPacket() makes already fit their data
+        if ((packet.getOffset() != 0) || (packetLen != data.length)) {
+            byte[] copy = new byte[packetLen];
+
+            System.arraycopy(data, packet.getOffset(), copy, 0, packetLen);
+            data = copy;
+        }
+
+        packetBytes = data;
 
         return packetBytes;
     }
 
+    ////////////////////////////////////////////////
+    // Header index
+    ////////////////////////////////////////////////
+    private final static int HOST_HEADER = 0;
+    private final static int CACHE_CONTROL_HEADER = 1;
+    private final static int LOCATION_HEADER = 2;
+    private final static int MAN_HEADER = 3;
+    private final static int ST_HEADER = 4;
+    private final static int NT_HEADER = 5;
+    private final static int NTS_HEADER = 6;
+    private final static int SERVER_HEADER = 7;
+    private final static int USN_HEADER = 8;
+    private final static int MX_HEADER = 9;
+    private final static int BOOTID_HEADER = 10;
+    private final static int CONFIGID_HEADER = 11;
+
+    // In the order of the constants above, upper case
+    private final static byte[][] INDEXED_HEADERS = {
+        toUpperCaseBytes(HTTP.HOST), toUpperCaseBytes(HTTP.CACHE_CONTROL),
+        toUpperCaseBytes(HTTP.LOCATION), toUpperCaseBytes(HTTP.MAN),
+        toUpperCaseBytes(HTTP.ST), toUpperCaseBytes(HTTP.NT), toUpperCaseBytes(HTTP.NTS),
+        toUpperCaseBytes(HTTP.SERVER), toUpperCaseBytes(HTTP.USN),
+        toUpperCaseBytes(HTTP.MX), toUpperCaseBytes(HTTP.BOOTID_UPNP_ORG),
+        toUpperCaseBytes(HTTP.CONFIGID_UPNP_ORG)
+    };
+
+    private static byte[] toUpperCaseBytes(String name) {
+        return name.toUpperCase().getBytes();
+    }
+
+    /**
+     * Where the value of each indexed header starts and ends in getData(),
+     * -1 if it is missing. Built once, the first time a header is read; the
+     * values it points at are only made into strings when asked for.
+     */
+    private volatile int[] headerIndex = null;
+    private volatile String[] headerValues = null;
+
+    private int[] getHeaderIndex() {
+        int[] index = headerIndex;
+
+        if (index != null) {
+            return index;
+        }
+
+        byte[] data = getData();
+
+        index = new int[INDEXED_HEADERS.length * 2];
+
+        for (int n = 0; n < index.length; n++) {
+            index[n] = -1;
+        }
+
+        int lineStart = 0;
+
+        while (lineStart < data.length) {
+            int lineEnd = lineStart;
+
+            while ((lineEnd < data.length) && (data[lineEnd] != '\r') &&
+                    (data[lineEnd] != '\n')) {
+                lineEnd++;
+            }
+
+            // The blank line which ends the headers
+            if (lineEnd == lineStart) {
+                break;
+            }
+
+            indexHeader(data, lineStart, lineEnd, index);
+
+            // Lines end with CRLF, CR or LF
+            lineStart = lineEnd;
+
+            if ((lineStart < data.length) && (data[lineStart] == '\r')) {
+                lineStart++;
+            }
+
+            if ((lineStart < data.length) && (data[lineStart] == '\n')) {
+                lineStart++;
+            }
+        }
+
+        headerValues = new String[INDEXED_HEADERS.length];
+        headerIndex = index;
+
+        return index;
+    }
+
+    /**
+     * Records where the value of that line is if it is a header we index,
+     * and the first one of its name.
+     */
+    private static void indexHeader(byte[] data, int lineStart, int lineEnd, int[] index) {
+        int colonIdx = lineStart;
+
+        while ((colonIdx < lineEnd) && (data[colonIdx] != ':')) {
+            colonIdx++;
+        }
+
+        if (colonIdx == lineEnd) {
+            return;
+        }
+
+        // Trimmed like String.trim() does
+        int nameStart = lineStart;
+        int nameEnd = colonIdx;
+
+        while ((nameStart < nameEnd) && ((data[nameStart] & 0xff) <= ' ')) {
+            nameStart++;
+        }
+
+        while ((nameStart < nameEnd) && ((data[nameEnd - 1] & 0xff) <= ' ')) {
+            nameEnd--;
+        }
+
+        for (int n = 0; n < INDEXED_HEADERS.length; n++) {
+            if ((index[2 * n] != -1) || !isHeaderName(data, nameStart, nameEnd, n)) {
+                continue;
+            }
+
+            int valueStart = colonIdx + 1;
+            int valueEnd = lineEnd;
+
+            while ((valueStart < valueEnd) && ((data[valueStart] & 0xff) <= ' ')) {
+                valueStart++;
+            }
+
+            while ((valueStart < valueEnd) && ((data[valueEnd - 1] & 0xff) <= ' ')) {
+                valueEnd--;
+            }
+
+            index[2 * n] = valueStart;
+            index[(2 * n) + 1] = valueEnd;
+
+            return;
+        }
+    }
+
+    private static boolean isHeaderName(byte[] data, int start, int end, int header) {
+        byte[] name = INDEXED_HEADERS[header];
+
+        if ((end - start) != name.length) {
+            return false;
+        }
+
+        for (int n = 0; n < name.length; n++) {
+            byte b = data[start + n];
+
+            if ((b >= 'a') && (b <= 'z')) {
+                b -= 'a' - 'A';
+            }
+
+            if (b != name[n]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the value of that header, "" if it is missing
+     */
+    private String getHeaderValue(int header) {
+        int[] index = getHeaderIndex();
+        String[] values = headerValues;
+        String value = values[header];
+
+        if (value != null) {
+            return value;
+        }
+
+        int start = index[2 * header];
+
+        value = (start == -1) ? ""
+                              : new String(getData(), start, index[(2 * header) + 1] - start);
+        values[header] = value;
+
+        return value;
+    }
+
     ////////////////////////////////////////////////
     // Access Methods
     ////////////////////////////////////////////////
     public String getHost() {
-        return HTTPHeader.getValue(getData(), HTTP.HOST);
+        return getHeaderValue(HOST_HEADER);
     }
 
     public String getCacheControl() {
-        return HTTPHeader.getValue(getData(), HTTP.CACHE_CONTROL);
+        return getHeaderValue(CACHE_CONTROL_HEADER);
     }
 
     public String getLocation() {
-        return HTTPHeader.getValue(getData(), HTTP.LOCATION);
+        return getHeaderValue(LOCATION_HEADER);
     }
 
     public String getMAN() {
-        return HTTPHeader.getValue(getData(), HTTP.MAN);
+        return getHeaderValue(MAN_HEADER);
     }
 
     public String getST() {
-        return HTTPHeader.getValue(getData(), HTTP.ST);
+        return getHeaderValue(ST_HEADER);
     }
 
     public String getNT() {
-        return HTTPHeader.getValue(getData(), HTTP.NT);
+        return getHeaderValue(NT_HEADER);
     }
 
     public String getNTS() {
-        return HTTPHeader.getValue(getData(), HTTP.NTS);
+        return getHeaderValue(NTS_HEADER);
     }
 
     public String getServer() {
-        return HTTPHeader.getValue(getData(), HTTP.SERVER);
+        return getHeaderValue(SERVER_HEADER);
     }
 
     public String getUSN() {
-        return HTTPHeader.getValue(getData(), HTTP.USN);
+        return getHeaderValue(USN_HEADER);
     }
 
     public int getMX() {
-        return HTTPHeader.getIntegerValue(getData(), HTTP.MX);
+        try {
+            return Integer.parseInt(getHeaderValue(MX_HEADER));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public String getBootId() {
+        return getHeaderValue(BOOTID_HEADER);
+    }
+
+    public String getConfigId() {
+        return getHeaderValue(CONFIGID_HEADER);
     }
 
     ////////////////////////////////////////////////
@@ -0,0 +1,202 @@
+/******************************************************************
+*
+*   CyberUPnP for Java
+*
+*   File: SSDPPacketTest.java
+*
+*   Revision:
+*
+*   10/17/26
+*       - first revision.
+*
+******************************************************************/
+
+
+package plugins.UPnP.org.cybergarage.upnp.ssdp;
+
+import junit.framework.TestCase;
+
+import plugins.UPnP.org.cybergarage.http.*;
+
+/**
+ * Checks that the header index of SSDPPacket reads the same values as
+ * HTTPHeader.getValue(), which it replaces.
+ */
+public class SSDPPacketTest extends TestCase {
+    private final static String[] NAMES = {
+        HTTP.HOST, HTTP.CACHE_CONTROL, HTTP.LOCATION, HTTP.MAN, HTTP.ST, HTTP.NT, HTTP.NTS,
+        HTTP.SERVER, HTTP.USN, HTTP.BOOTID_UPNP_ORG, HTTP.CONFIGID_UPNP_ORG
+    };
+
+    private final static String NOTIFY =
+        "NOTIFY * HTTP/1.1\r\n" +
+        "HOST: 239.255.255.250:1900\r\n" +
+        "CACHE-CONTROL: max-age=1800\r\n" +
+        "LOCATION: http://192.168.1.1:5431/dyndev/uuid:0000e068-20a0-00e0-20a0-48a8000808e0\r\n" +
+        "NT: urn:schemas-upnp-org:device:InternetGatewayDevice:1\r\n" +
+        "NTS: ssdp:alive\r\n" +
+        "SERVER: LINUX/2.4 UPnP/1.0 BRCM400/1.0\r\n" +
+        "USN: uuid:0000e068-20a0-00e0-20a0-48a8000808e0::urn:schemas-upnp-org:device:InternetGatewayDevice:1\r\n" +
+        "BOOTID.UPNP.ORG: 7\r\n" +
+        "CONFIGID.UPNP.ORG: 42\r\n" +
+        "\r\n";
+
+    private static SSDPPacket createPacket(String data) {
+        byte[] bytes = data.getBytes();
+
+        return new SSDPPacket(bytes, bytes.length);
+    }
+
+    private static String getValue(SSDPPacket packet, String name) {
+        if (name.equals(HTTP.HOST)) {
+            return packet.getHost();
+        } else if (name.equals(HTTP.CACHE_CONTROL)) {
+            return packet.getCacheControl();
+        } else if (name.equals(HTTP.LOCATION)) {
+            return packet.getLocation();
+        } else if (name.equals(HTTP.MAN)) {
+            return packet.getMAN();
+        } else if (name.equals(HTTP.ST)) {
+            return packet.getST();
+        } else if (name.equals(HTTP.NT)) {
+            return packet.getNT();
+        } else if (name.equals(HTTP.NTS)) {
+            return packet.getNTS();
+        } else if (name.equals(HTTP.SERVER)) {
+            return packet.getServer();
+        } else if (name.equals(HTTP.USN)) {
+            return packet.getUSN();
+        } else if (name.equals(HTTP.BOOTID_UPNP_ORG)) {
+            return packet.getBootId();
+        } else {
+            return packet.getConfigId();
+        }
+    }
+
+    /**
+     * Reads every indexed header of data both ways, then again once the
+     * values are cached.
+     */
+    private static SSDPPacket assertSameValues(String data) {
+        SSDPPacket packet = createPacket(data);
+
+        for (int pass = 0; pass < 2; pass++) {
+            for (int n = 0; n < NAMES.length; n++) {
+                assertEquals(NAMES[n], HTTPHeader.getValue(data, NAMES[n]),
+                             getValue(packet, NAMES[n]));
+            }
+
+            assertEquals(HTTPHeader.getIntegerValue(data, HTTP.MX), packet.getMX());
+        }
+
+        return packet;
+    }
+
+    public void testCRLF() {
+        SSDPPacket packet = assertSameValues(NOTIFY);
+
+        assertEquals("239.255.255.250:1900", packet.getHost());
+        assertEquals("ssdp:alive", packet.getNTS());
+        assertEquals("7", packet.getBootId());
+        assertEquals("42", packet.getConfigId());
+        assertEquals("", packet.getST());
+    }
+
+    public void testLF() {
+        SSDPPacket packet = assertSameValues(NOTIFY.replace("\r\n", "\n"));
+
+        assertEquals("ssdp:alive", packet.getNTS());
+        assertEquals("42", packet.getConfigId());
+    }
+
+    public void testCR() {
+        SSDPPacket packet = assertSameValues(NOTIFY.replace("\r\n", "\r"));
+
+        assertEquals("ssdp:alive", packet.getNTS());
+        assertEquals("42", packet.getConfigId());
+    }
+
+    public void testMixedLineEndings() {
+        assertSameValues("HTTP/1.1 200 OK\r\nST: upnp:rootdevice\nUSN: uuid:a\rEXT:\r\n" +
+                         "LOCATION: http://10.0.0.1/\n\n");
+    }
+
+    public void testMixedCaseNames() {
+        SSDPPacket packet = assertSameValues("NOTIFY * HTTP/1.1\r\nnt: a\r\nLocation: b\r\n" +
+                                             "uSn: c\r\nnTs: ssdp:byebye\r\n" +
+                                             "BootId.UPnP.Org: 3\r\n\r\n");
+
+        assertEquals("a", packet.getNT());
+        assertEquals("b", packet.getLocation());
+        assertEquals("c", packet.getUSN());
+        assertEquals("ssdp:byebye", packet.getNTS());
+        assertEquals("3", packet.getBootId());
+    }
+
+    public void testFirstValueWins() {
+        SSDPPacket packet = assertSameValues("NOTIFY * HTTP/1.1\r\nNT: first\r\nNT: second\r\n" +
+                                             "ST:\r\nST: not empty\r\n\r\n");
+
+        assertEquals("first", packet.getNT());
+        assertEquals("", packet.getST());
+    }
+
+    public void testTrimming() {
+        SSDPPacket packet = assertSameValues("NOTIFY * HTTP/1.1\r\n  NT \t:  \t a b \t \r\n" +
+                                             "USN:c\r\n\r\n");
+
+        assertEquals("a b", packet.getNT());
+        assertEquals("c", packet.getUSN());
+    }
+
+    public void testLineWithoutColon() {
+        SSDPPacket packet = assertSameValues("NOTIFY * HTTP/1.1\r\nNT\r\ngarbage here\r\n" +
+                                             "NT: after\r\n\r\n");
+
+        assertEquals("after", packet.getNT());
+    }
+
+    public void testBlankLineEndsHeaders() {
+        SSDPPacket packet = assertSameValues("HTTP/1.1 200 OK\r\nST: before\r\n\r\n" +
+                                             "USN: in the body\r\nLOCATION: too\r\n");
+
+        assertEquals("before", packet.getST());
+        assertEquals("", packet.getUSN());
+        assertEquals("", packet.getLocation());
+    }
+
+    public void testWhitespaceLineDoesntEndHeaders() {
+        assertSameValues("HTTP/1.1 200 OK\r\nST: before\r\n \t\r\nUSN: after\r\n\r\n");
+    }
+
+    public void testNoFinalLineEnding() {
+        SSDPPacket packet = assertSameValues("HTTP/1.1 200 OK\r\nST: last");
+
+        assertEquals("last", packet.getST());
+    }
+
+    public void testMissingHeaders() {
+        SSDPPacket packet = assertSameValues("M-SEARCH * HTTP/1.1\r\n\r\n");
+
+        assertEquals("", packet.getHost());
+        assertEquals("", packet.getConfigId());
+    }
+
+    public void testEmptyPacket() {
+        assertSameValues("");
+    }
+
+    public void testMX() {
+        SSDPPacket packet = assertSameValues("M-SEARCH * HTTP/1.1\r\nMX:  5 \r\n\r\n");
+
+        assertEquals(5, packet.getMX());
+        assertEquals(0, assertSameValues("M-SEARCH * HTTP/1.1\r\nMX: x\r\n\r\n").getMX());
+    }
+
+    public void testColonInValue() {
+        SSDPPacket packet = assertSameValues("NOTIFY * HTTP/1.1\r\nLOCATION: http://h:1/d\r\n" +
+                                             "\r\n");
+
+        assertEquals("http://h:1/d", packet.getLocation());
+    }
+}
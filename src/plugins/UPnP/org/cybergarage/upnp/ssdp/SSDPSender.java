@@ -0,0 +1,212 @@
+/******************************************************************
+*
+*   CyberUPnP for Java
+*
+*   File: SSDPSender.java
+*
+*   Revision:
+*
+*   10/17/26
+*       - first revision.
+*
+******************************************************************/
+
+
+package plugins.UPnP.org.cybergarage.upnp.ssdp;
+
+import java.io.IOException;
+import java.net.*;
+import java.util.HashMap;
+
+import plugins.UPnP.org.cybergarage.net.*;
+import plugins.UPnP.org.cybergarage.util.*;
+
+/**
+ * Sends the NOTIFYs and the search responses of a local address, always
+ * from the same socket. Sending doesn't need to join the SSDP group, so
+ * these sockets never do.
+ *
+ * The senders are shared by all the users of a local address in the
+ * process, and counted: acquire() one, and release() it when done. A device
+ * holds its senders from start() to stop(); the other users acquire one for
+ * the time of a send. The last release() closes the socket. A sender whose
+ * send fails closes its socket as well, and opens a new one the next time.
+ */
+public class SSDPSender {
+    // Thanks for Tho Beisch (11/09/04)
+    private final static int MULTICAST_TTL = 4;
+
+    /** The senders in use; also protects their users counts */
+    private final static HashMap<String, SSDPSender> senders =
+        new HashMap<String, SSDPSender>();
+
+    /**
+     * @param bindAddr the local address to send from, null or "" for the
+     *        default one
+     * @return the sender of that address, to be released once done with
+     */
+    public static SSDPSender acquire(String bindAddr) {
+        String key = (bindAddr == null) ? "" : bindAddr;
+
+        synchronized (senders) {
+            SSDPSender sender = senders.get(key);
+
+            if (sender == null) {
+                sender = new SSDPSender(key);
+                senders.put(key, sender);
+            }
+
+            sender.users++;
+
+            return sender;
+        }
+    }
+
+    /**
+     * Gives back a sender got from acquire(). After the last release, it is
+     * forgotten and its socket is closed.
+     */
+    public void release() {
+        synchronized (senders) {
+            if (users <= 0) {
+                throw new IllegalStateException("Released more often than acquired: " + bindAddr);
+            }
+
+            users--;
+
+            if (users > 0) {
+                return;
+            }
+
+            senders.remove(bindAddr);
+        }
+
+        close();
+    }
+
+    ////////////////////////////////////////////////
+    // Member
+    ////////////////////////////////////////////////
+    private final String bindAddr;
+
+    /** Protected by synchronized (senders) */
+    private int users = 0;
+
+    /** Protected by synchronized (this) */
+    private MulticastSocket sock = null;
+
+    ////////////////////////////////////////////////
+    // Constructor
+    ////////////////////////////////////////////////
+    private SSDPSender(String bindAddr) {
+        this.bindAddr = bindAddr;
+    }
+
+    public String getLocalAddress() {
+        return bindAddr;
+    }
+
+    ////////////////////////////////////////////////
+    // open/close
+    ////////////////////////////////////////////////
+    private synchronized MulticastSocket getSocket() throws IOException {
+        if (sock != null) {
+            return sock;
+        }
+
+        MulticastSocket s;
+
+        if (bindAddr.length() == 0) {
+            s = new MulticastSocket();
+        } else {
+            InetAddress addr = InetAddress.getByName(bindAddr);
+
+            s = new MulticastSocket(new InetSocketAddress(addr, 0));
+
+            try {
+                NetworkInterface ni = NetworkInterface.getByInetAddress(addr);
+
+                if (ni != null) {
+                    s.setNetworkInterface(ni);
+                }
+            } catch (IOException e) {
+                s.close();
+
+                throw e;
+            }
+        }
+
+        s.setTimeToLive(MULTICAST_TTL);
+        sock = s;
+
+        return sock;
+    }
+
+    private synchronized void close() {
+        if (sock != null) {
+            sock.close();
+            sock = null;
+        }
+    }
+
+    ////////////////////////////////////////////////
+    // send
+    ////////////////////////////////////////////////
+    public boolean send(String msg, InetAddress addr, int port) {
+        return send(msg.getBytes(), addr, port);
+    }
+
+    /**
+     * Synchronized, so that a failed send doesn't close the socket while
+     * another thread is sending with it.
+     */
+    public synchronized boolean send(byte[] data, InetAddress addr, int port) {
+        DatagramPacket dgmPacket = new DatagramPacket(data, data.length, addr, port);
+
+        try {
+            getSocket().send(dgmPacket);
+        } catch (IOException e) {
+            Debug.warning("Couldn't send from " + bindAddr + " to " + addr + ":" + port);
+            Debug.warning(e);
+
+            // The address may have gone away: start afresh next time
+            close();
+
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Multicasts a NOTIFY to the SSDP group of the address family of the
+     * local address.
+     */
+    public boolean post(SSDPNotifyRequest req) {
+        String ssdpAddr = SSDP.ADDRESS;
+
+        if (HostInterface.isIPv6Address(bindAddr) == true) {
+            ssdpAddr = SSDP.getIPv6Address();
+        }
+
+        req.setHost(ssdpAddr, SSDP.PORT);
+
+        try {
+            return send(req.toString(), InetAddress.getByName(ssdpAddr), SSDP.PORT);
+        } catch (UnknownHostException e) {
+            Debug.warning(e);
+
+            return false;
+        }
+    }
+
+    public boolean post(String addr, int port, SSDPSearchResponse res) {
+        try {
+            return send(res.getHeader(), InetAddress.getByName(addr), port);
+        } catch (UnknownHostException e) {
+            Debug.warning(e);
+
+            return false;
+        }
+    }
+}
@@ -12,6 +12,9 @@
 *       - first revision.
 *   12/25/03
 *       - Added Advertiser functions.
+*   10/17/26
+*       - Added AnnouncementPlan functions.
+*       - Added SSDPSender functions.
 *
 ******************************************************************/
 
@@ -19,6 +22,7 @@
 package plugins.UPnP.org.cybergarage.upnp.xml;
 
 import java.io.*;
+import java.util.List;
 
 import plugins.UPnP.org.cybergarage.util.*;
 import plugins.UPnP.org.cybergarage.http.*;
@@ -148,4 +152,30 @@ public class DeviceData extends NodeData {
     public Advertiser getAdvertiser() {
         return advertiser;
     }
+
+    ////////////////////////////////////////////////
+    // AnnouncementPlan
+    ////////////////////////////////////////////////
+    private AnnouncementPlan announcementPlan = null;
+
+    public void setAnnouncementPlan(AnnouncementPlan plan) {
+        announcementPlan = plan;
+    }
+
+    public AnnouncementPlan getAnnouncementPlan() {
+        return announcementPlan;
+    }
+
+    ////////////////////////////////////////////////
+    // SSDPSender
+    ////////////////////////////////////////////////
+    private List<SSDPSender> ssdpSenders = null;
+
+    public void setSSDPSenders(List<SSDPSender> senders) {
+        ssdpSenders = senders;
+    }
+
+    public List<SSDPSender> getSSDPSenders() {
+        return ssdpSenders;
+    }
 }
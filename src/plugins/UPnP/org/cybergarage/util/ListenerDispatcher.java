@@ -0,0 +1,302 @@
+/******************************************************************
+*
+*   CyberUPnP for Java
+*
+*   File: ListenerDispatcher.java
+*
+*   Revision;
+*
+*   10/17/26
+*       - first revision.
+*
+******************************************************************/
+
+
+package plugins.UPnP.org.cybergarage.util;
+
+import java.util.LinkedList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Calls a set of listeners, each either on the calling thread (inline) or
+ * on a pool (async). An async listener gets its calls one at a time and in
+ * order, but never holds up the caller nor the other listeners. A listener
+ * throwing doesn't prevent the others from being called.
+ *
+ * Adding and removing listeners copies the set, so dispatching never locks.
+ *
+ * stop() waits for the async calls to be delivered, after which calls are
+ * dropped until start().
+ */
+public class ListenerDispatcher {
+    ////////////////////////////////////////////////
+    // Constants
+    ////////////////////////////////////////////////
+
+    /** Calls taking longer than that, in milliseconds, are reported */
+    public final static long DEFAULT_SLOW_CALL_THRESHOLD = 1000;
+
+    ////////////////////////////////////////////////
+    // Call
+    ////////////////////////////////////////////////
+    public static abstract class Call {
+        public abstract void deliver(Object listener);
+    }
+
+    private static class Registration {
+        final Object listener;
+        final boolean isAsync;
+
+        /** Protected by synchronized (this) */
+        final LinkedList<Call> queue = new LinkedList<Call>();
+        boolean isDraining = false;
+        volatile boolean isRemoved = false;
+
+        Registration(Object listener, boolean isAsync) {
+            this.listener = listener;
+            this.isAsync = isAsync;
+        }
+    }
+
+    ////////////////////////////////////////////////
+    // Member
+    ////////////////////////////////////////////////
+    private final String name;
+    private final Executor executor;
+    private final CopyOnWriteArrayList<Registration> registrations =
+        new CopyOnWriteArrayList<Registration>();
+    private volatile long slowCallThreshold = DEFAULT_SLOW_CALL_THRESHOLD;
+    private final AtomicLong queueDepth = new AtomicLong();
+    private final AtomicLong slowCalls = new AtomicLong();
+    private final AtomicLong failedCalls = new AtomicLong();
+
+    /** Set by stop(), cleared by start() */
+    private volatile boolean isStopped = false;
+
+    /**
+     * The async calls not delivered nor dropped yet. Protected by
+     * synchronized (pendingLock)
+     */
+    private int pendingCalls = 0;
+    private final Object pendingLock = new Object();
+
+    ////////////////////////////////////////////////
+    // Constructor
+    ////////////////////////////////////////////////
+
+    /**
+     * @param name what the listeners listen to, for the logs
+     * @param executor runs the async listeners
+     */
+    public ListenerDispatcher(String name, Executor executor) {
+        this.name = name;
+        this.executor = executor;
+    }
+
+    ////////////////////////////////////////////////
+    // Listeners
+    ////////////////////////////////////////////////
+
+    /**
+     * @return false if it was already there
+     */
+    public synchronized boolean add(Object listener, boolean isAsync) {
+        for (Registration reg : registrations) {
+            if (reg.listener == listener) {
+                return false;
+            }
+        }
+
+        return registrations.add(new Registration(listener, isAsync));
+    }
+
+    /**
+     * Removes a listener; the calls still queued for it are dropped.
+     */
+    public synchronized boolean remove(Object listener) {
+        for (Registration reg : registrations) {
+            if (reg.listener == listener) {
+                reg.isRemoved = true;
+                registrations.remove(reg);
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public int size() {
+        return registrations.size();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    ////////////////////////////////////////////////
+    // start/stop
+    ////////////////////////////////////////////////
+    public void start() {
+        isStopped = false;
+    }
+
+    /**
+     * Waits until deadline for the queued async calls to be delivered, then
+     * drops whatever is left: no call starts after stop() returns. A call
+     * which is running at that time can't be stopped, though.
+     *
+     * @param deadline as given by System.currentTimeMillis()
+     * @return false if calls were dropped or are still running
+     */
+    public boolean stop(long deadline) {
+        synchronized (pendingLock) {
+            try {
+                long now = System.currentTimeMillis();
+
+                while ((pendingCalls > 0) && (now < deadline)) {
+                    pendingLock.wait(deadline - now);
+                    now = System.currentTimeMillis();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            isStopped = true;
+
+            return (pendingCalls == 0);
+        }
+    }
+
+    private void callDone() {
+        synchronized (pendingLock) {
+            pendingCalls--;
+
+            if (pendingCalls == 0) {
+                pendingLock.notifyAll();
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////
+    // Dispatch
+    ////////////////////////////////////////////////
+    public void dispatch(Call call) {
+        if (isStopped == true) {
+            return;
+        }
+
+        for (Registration reg : registrations) {
+            if (reg.isAsync == false) {
+                deliver(reg, call);
+
+                continue;
+            }
+
+            synchronized (pendingLock) {
+                pendingCalls++;
+            }
+
+            synchronized (reg) {
+                reg.queue.add(call);
+                queueDepth.incrementAndGet();
+
+                if (reg.isDraining == true) {
+                    continue;
+                }
+
+                reg.isDraining = true;
+            }
+
+            final Registration drained = reg;
+
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        drain(drained);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+
+                // Better late than never
+                drain(drained);
+            }
+        }
+    }
+
+    private void drain(Registration reg) {
+        while (true) {
+            Call call;
+
+            synchronized (reg) {
+                call = reg.queue.poll();
+
+                if (call == null) {
+                    reg.isDraining = false;
+
+                    return;
+                }
+            }
+
+            queueDepth.decrementAndGet();
+
+            try {
+                if ((reg.isRemoved == false) && (isStopped == false)) {
+                    deliver(reg, call);
+                }
+            } finally {
+                callDone();
+            }
+        }
+    }
+
+    private void deliver(Registration reg, Call call) {
+        long start = System.currentTimeMillis();
+
+        try {
+            call.deliver(reg.listener);
+        } catch (RuntimeException e) {
+            failedCalls.incrementAndGet();
+            Debug.warning("A " + name + " listener has failed: " + reg.listener);
+            Debug.warning(e);
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+
+        if (elapsed > slowCallThreshold) {
+            slowCalls.incrementAndGet();
+            Debug.warning("A " + name + " listener took " + elapsed + " ms: " + reg.listener);
+        }
+    }
+
+    ////////////////////////////////////////////////
+    // Statistics
+    ////////////////////////////////////////////////
+    public void setSlowCallThreshold(long millis) {
+        slowCallThreshold = millis;
+    }
+
+    /**
+     * @return how many calls are waiting for async listeners
+     */
+    public long getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * @return how many calls took longer than the slow call threshold
+     */
+    public long getSlowCallCount() {
+        return slowCalls.get();
+    }
+
+    /**
+     * @return how many calls threw
+     */
+    public long getFailedCallCount() {
+        return failedCalls.get();
+    }
+}